@@ -114,12 +114,32 @@ public class MGSpoolDirConfig {
     public static final String TRACKER_DIR = "trackerDir";
     public static final String DEFAULT_TRACKER_DIR = ".flumespool";
 
+    /**
+     * Read positions of all files are kept in one append-only log in the tracker
+     * directory, updates are forced to disk at most once per this interval
+     * (unit: milliseconds, 0 means force on every update).
+     */
+    public static final String TRACKER_SYNC_INTERVAL = "trackerSyncInterval";
+    public static final long DEFAULT_TRACKER_SYNC_INTERVAL = 1000L;
+
     /**
      * Deserializer to use to parse the file data into Flume Events
      */
     public static final String DESERIALIZER = "deserializer";
     public static final String DEFAULT_DESERIALIZER = "LINE";
 
+    /**
+     * Memory-mapped line deserializer, splits lines as byte ranges without
+     * charset decoding. Only for UTF-8/ASCII input.
+     */
+    public static final String MMAP_LINE_DESERIALIZER = "MMAP_LINE";
+
+    /**
+     * Whole-file block deserializer, emits fixed-size chunks with offset headers
+     * which the sink writes positionally.
+     */
+    public static final String BLOCK_DESERIALIZER = "BLOCK";
+
     public static final String DELETE_POLICY = "deletePolicy";
     public static final String DEFAULT_DELETE_POLICY = "never";
 
@@ -142,13 +162,97 @@ public class MGSpoolDirConfig {
 
     /**
      * Consume order.
+     * NAME consumes files in lexicographical order of file name, which needs no stat.
      */
     public enum ConsumeOrder {
-        OLDEST, YOUNGEST, RANDOM
+        OLDEST, YOUNGEST, RANDOM, NAME
     }
 
     public static final String CONSUME_ORDER = "consumeOrder";
     public static final ConsumeOrder DEFAULT_CONSUME_ORDER = ConsumeOrder.OLDEST;
 
+    /**
+     * How files are identified for done tracking and resume.
+     * NAME uses the file name. INODE uses device + inode plus a fingerprint of
+     * the first bytes, so renamed files are not collected again and reused
+     * names are not skipped.
+     */
+    public enum FileIdentityMode {
+        NAME, INODE
+    }
+
+    public static final String FILE_IDENTITY = "fileIdentity";
+    public static final FileIdentityMode DEFAULT_FILE_IDENTITY = FileIdentityMode.NAME;
+
+    /**
+     * Number of head bytes hashed into the fingerprint in INODE mode.
+     */
+    public static final String FINGERPRINT_BYTES = "fingerprintBytes";
+    public static final int DEFAULT_FINGERPRINT_BYTES = 4096;
+
+    /**
+     * Compact the done-files journal into a snapshot after this many records.
+     */
+    public static final String DONE_FILE_COMPACT_THRESHOLD = "doneFileCompactThreshold";
+    public static final int DEFAULT_DONE_FILE_COMPACT_THRESHOLD = 10000;
+
+    /**
+     * Forget done files which have not been seen in the spool directory
+     * for this many days (unit: days, 0 means never expire).
+     */
+    public static final String DONE_FILE_EXPIRE_DAYS = "doneFileExpireDays";
+    public static final int DEFAULT_DONE_FILE_EXPIRE_DAYS = 30;
+
+    /**
+     * Number of readers draining the spool directory concurrently,
+     * each reader owns the files whose name hash falls into its partition.
+     */
+    public static final String PARALLELISM = "parallelism";
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    /**
+     * Watch the spool directory with WatchService and collect new files as they
+     * land, instead of rescanning by cron expression or poll delay.
+     */
+    public static final String WATCH_MODE = "watchMode";
+    public static final boolean DEFAULT_WATCH_MODE = false;
+
+    /**
+     * A watched file is collected only after it has not changed for this long
+     * (unit: seconds).
+     */
+    public static final String WATCH_SETTLE_SECONDS = "watchSettleSeconds";
+    public static final int DEFAULT_WATCH_SETTLE_SECONDS = 10;
+
+    /**
+     * Interval of the full directory scan that reconciles watched files
+     * (unit: minutes).
+     */
+    public static final String WATCH_RECONCILE_INTERVAL = "watchReconcileInterval";
+    public static final int DEFAULT_WATCH_RECONCILE_INTERVAL = 60;
+
+    /**
+     * Tail files which are still being appended to: a file that grew or changed
+     * within the quiet period is read up to its end and resumed from the committed
+     * offset on the next run, instead of being re-collected from the beginning.
+     */
+    public static final String TAIL_FILES = "tailFiles";
+    public static final boolean DEFAULT_TAIL_FILES = false;
+
+    /**
+     * A tailed file is declared done after it has not changed for this long
+     * (unit: seconds).
+     */
+    public static final String TAIL_QUIET_SECONDS = "tailQuietSeconds";
+    public static final int DEFAULT_TAIL_QUIET_SECONDS = 300;
+
+    /**
+     * While a file is being read, read ahead up to this many bytes of the next
+     * candidate file in the background to warm the page cache
+     * (unit: bytes, 0 disables prefetching).
+     */
+    public static final String PREFETCH_BYTES = "prefetchBytes";
+    public static final long DEFAULT_PREFETCH_BYTES = 16L * 1024 * 1024;
+
     public static final String DATE_FORMAT = "YYYY-MM-dd HH:mm:ss";
 }
@@ -0,0 +1,179 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 双缓冲异步写入流水线
+ * - sink 线程从 channel 取 event 放入填充缓冲区, 缓冲区满后交给写线程, 写线程序列化并写入文件
+ * - 两个缓冲区交替使用: 写线程处理一个缓冲区时 sink 线程继续填充另一个, channel 读取与磁盘 IO 重叠
+ * - 同一时刻最多一个缓冲区在写, event 顺序与 channel 中一致
+ * - sync() 等待所有缓冲区写完并 flush, 之后 sink 才提交事务, 与同步写入的可靠性一致
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/14 10:20
+ */
+public class AsyncWriterPipeline implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncWriterPipeline.class);
+
+    /**
+     * 在写线程中执行的写入操作
+     */
+    public interface Handler {
+
+        void write(List<Event> events) throws IOException, InterruptedException;
+
+        void flush() throws IOException;
+    }
+
+    private final Handler handler;
+    private final int bufferSize;
+    private final ExecutorService executor;
+
+    // sink 线程正在填充的缓冲区
+    private List<Event> filling;
+    // 写线程空闲的缓冲区, 写完后与 filling 交换
+    private List<Event> spare;
+    // 写线程正在处理的缓冲区
+    private Future<?> inFlight;
+    // 已提交的 flush
+    private Future<?> pendingFlush;
+
+    /**
+     * @param name       写线程名称
+     * @param bufferSize 每个缓冲区的 event 数
+     */
+    public AsyncWriterPipeline(String name, int bufferSize, Handler handler) {
+        Preconditions.checkArgument(bufferSize > 0, "bufferSize must be greater than 0");
+        this.handler = Preconditions.checkNotNull(handler);
+        this.bufferSize = bufferSize;
+        this.filling = Lists.newArrayListWithCapacity(bufferSize);
+        this.spare = Lists.newArrayListWithCapacity(bufferSize);
+        this.executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name).setDaemon(true).build());
+    }
+
+    /**
+     * 添加 event, 缓冲区满时交给写线程, 上一个缓冲区未写完时等待
+     */
+    public void add(Event event) throws IOException, InterruptedException {
+        filling.add(event);
+        if (filling.size() >= bufferSize) {
+            handOff();
+        }
+    }
+
+    /**
+     * 写入所有缓冲的 event 并 flush, 返回后可以提交事务
+     */
+    public void sync() throws IOException, InterruptedException {
+        startSync();
+        awaitSync();
+    }
+
+    /**
+     * 提交剩余缓冲区与 flush 但不等待, 多个流水线可以先全部提交再分别等待
+     */
+    public void startSync() throws IOException, InterruptedException {
+        if (!filling.isEmpty()) {
+            handOff();
+        }
+        // 单线程执行, flush 在缓冲区写完之后执行
+        pendingFlush = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                handler.flush();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 等待 startSync() 提交的写入与 flush 完成
+     */
+    public void awaitSync() throws IOException, InterruptedException {
+        await(inFlight);
+        inFlight = null;
+        Future<?> flush = pendingFlush;
+        pendingFlush = null;
+        await(flush);
+    }
+
+    /**
+     * 事务回滚时丢弃未写入的 event, 已经交给写线程的缓冲区仍会写完
+     */
+    public void abort() {
+        filling.clear();
+        try {
+            sync();
+        } catch (Exception e) {
+            logger.warn("Flush after abort failed", e);
+        }
+    }
+
+    private void handOff() throws IOException, InterruptedException {
+        await(inFlight);
+        // 写线程已处理完 spare, 与 filling 交换
+        final List<Event> batch = filling;
+        filling = spare;
+        spare = batch;
+        inFlight = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    handler.write(batch);
+                } finally {
+                    batch.clear();
+                }
+                return null;
+            }
+        });
+    }
+
+    private void await(Future<?> future) throws IOException, InterruptedException {
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            inFlight = null;
+            pendingFlush = null;
+            Throwable cause = e.getCause();
+            Throwables.propagateIfPossible(cause, IOException.class, InterruptedException.class);
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
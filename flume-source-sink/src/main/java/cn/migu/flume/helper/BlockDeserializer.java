@@ -0,0 +1,155 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.PositionTracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 整文件按块传输的反序列化
+ * - 按固定大小切块, 不再按行拆分, 每块一个 event
+ * - header 带上块在源文件中的偏移量与序号, sink 按偏移量定位写入, 重传幂等
+ * - 位置记录为文件字节偏移, 与 DurablePositionTracker 兼容
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/9/28 10:15
+ */
+public class BlockDeserializer implements EventDeserializer {
+
+    /**
+     * 块在源文件中的字节偏移量, 需要与 sink 对应
+     */
+    public static final String OFFSET_HEADER = "blockOffset";
+
+    /**
+     * 块序号 (偏移量 / 块大小)
+     */
+    public static final String SEQUENCE_HEADER = "blockSeq";
+
+    /**
+     * 块大小 单位：字节 默认 1MB
+     */
+    public static final String BLOCK_SIZE_KEY = "blockSize";
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final PositionTracker tracker;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int blockSize;
+
+    private long position;
+    private long markPosition;
+    private boolean isOpen;
+
+    public BlockDeserializer(File file, PositionTracker tracker, Context context) throws IOException {
+        this.tracker = Preconditions.checkNotNull(tracker);
+        this.blockSize = context.getInteger(BLOCK_SIZE_KEY, DEFAULT_BLOCK_SIZE);
+        Preconditions.checkArgument(blockSize > 0, "Invalid %s: %s", BLOCK_SIZE_KEY, blockSize);
+
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+
+        // 从上次 commit 的位置继续读取
+        this.position = tracker.getPosition();
+        this.markPosition = position;
+        this.isOpen = true;
+    }
+
+    @Override
+    public Event readEvent() throws IOException {
+        ensureOpen();
+        return readBlock();
+    }
+
+    @Override
+    public List<Event> readEvents(int numEvents) throws IOException {
+        ensureOpen();
+        List<Event> events = Lists.newArrayList();
+        for (int i = 0; i < numEvents; i++) {
+            Event event = readBlock();
+            if (event == null) {
+                break;
+            }
+            events.add(event);
+        }
+        return events.isEmpty() ? Collections.<Event>emptyList() : events;
+    }
+
+    @Override
+    public void mark() throws IOException {
+        ensureOpen();
+        tracker.storePosition(position);
+        markPosition = position;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        ensureOpen();
+        position = markPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isOpen) {
+            isOpen = false;
+            tracker.close();
+            channel.close();
+            raf.close();
+        }
+    }
+
+    /**
+     * 从当前位置读取一块, 文件末尾返回 null
+     */
+    private Event readBlock() throws IOException {
+        long remaining = channel.size() - position;
+        if (remaining <= 0) {
+            return null;
+        }
+
+        byte[] body = new byte[(int) Math.min(blockSize, remaining)];
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        // 文件在读取过程中被截断
+        int read = buffer.position();
+        if (read == 0) {
+            return null;
+        }
+        if (read < body.length) {
+            body = Arrays.copyOf(body, read);
+        }
+
+        Map<String, String> headers = Maps.newHashMapWithExpectedSize(4);
+        headers.put(OFFSET_HEADER, Long.toString(position));
+        headers.put(SEQUENCE_HEADER, Long.toString(position / blockSize));
+        position += body.length;
+        return EventBuilder.withBody(body, headers);
+    }
+
+    private void ensureOpen() {
+        if (!isOpen) {
+            throw new IllegalStateException("Serializer has been closed");
+        }
+    }
+}
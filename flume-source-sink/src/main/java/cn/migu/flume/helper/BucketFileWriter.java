@@ -1,5 +1,7 @@
 package cn.migu.flume.helper;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.serialization.EventSerializer;
@@ -9,8 +11,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ScheduledExecutorService;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -25,6 +27,17 @@ import java.util.concurrent.atomic.AtomicLong;
  * @Update : v1.1
  * 1. 对于文件传输过程中发生更新的文件 重命名后缀为 .uncompleted
  * 2.文件写数据改为 append 模式
+ * 3.支持 force 落盘, 配合 GroupCommitter 组提交
+ * 4.支持压缩输出 (gzip/lz4/zstd), flush 时输出完整的压缩块
+ * 5.定时 roll 改用共享的时间轮, 关闭时取消
+ * 6.支持按写入字节数、event 数滚动, 滚动出的文件按序号命名 文件名.part-00000, 文件结束标记到达时最后一段同样按序号命名
+ * 7.flush 与 close 互斥, 已关闭时 flush 忽略
+ * 8.开启落盘时关闭前 force 尚未落盘的数据, 定时 roll 或淘汰关闭的文件同样落盘, 压缩输出关闭时写入的尾部同样落盘
+ * 9.写入与 close 互斥, 文件已关闭时写入抛出 IOException, 由 sink 回滚事务后重新写入
+ * 10.已存在分段文件时重传同样加 .redo 后缀; 分段的未压缩字节数与 event 数关闭时记录在隐藏文件中, 重新打开时恢复
+ * 11.压缩输出关闭时同样写入计数文件, 作为压缩流已正常结束的标记; 重新打开时没有标记的临时文件 (异常退出, 压缩流没有尾部)
+ * 不再追加, 重命名为 .uncompleted 后写入新的临时文件, 分段传输时作为未完成的分段
+ * 12.计数文件同时记录下一个分段序号, 已滚动的分段被归档移走或删除后重新打开, 序号不再从 0 开始
  */
 public class BucketFileWriter {
 
@@ -35,18 +48,44 @@ public class BucketFileWriter {
     private static final String REDO_FILE_SUFFIX = ".redo";
     // 文件传输过程中 文件发生更新/修改的 文件后缀
     private static final String FILE_NOT_COMPLETED_SUFFIX = ".uncompleted";
+    // 分段文件后缀
+    private static final String PART_SUFFIX_FORMAT = ".part-%05d";
+    // 分段计数文件后缀, 隐藏文件 .临时文件名.count, 压缩输出时同时作为正常关闭的标记
+    private static final String COUNT_FILE_SUFFIX = ".count";
 
     /**
      * This lock ensures that only one thread can open a file at a time.
      */
     private final AtomicLong fileExtensionCounter;
     private OutputStream outputStream;
+    // 用于 force 落盘
+    private FileOutputStream fileStream;
+    private volatile boolean closed;
+    // 定时 roll 任务, 关闭时取消
+    private TimingWheel.Timeout rollTimeout;
     private EventSerializer serializer;
+    // 按块传输时按偏移量定位写入, 首次写块时打开
+    private volatile FileChannel blockChannel;
+    // 落盘方式, 非 NONE 时关闭前 force
+    private GroupCommitter.Durability durability = GroupCommitter.Durability.NONE;
+    // 上次 force 之后是否有写入
+    private boolean unsynced;
 
     // 文件最汇总持久化路径
     private String filePath;
     // 临时文件路径
     private String dstTmpFile;
+    // 压缩格式, 输出文件名加上压缩后缀
+    private CompressionCodec codec = CompressionCodec.NONE;
+
+    // 按字节数/event 数滚动, 0 为不开启
+    private long rollSize;
+    private long rollCount;
+    // 当前分段已写入的字节数 (未压缩) 与 event 数
+    private long writtenBytes;
+    private long writtenEvents;
+    // 当前分段序号, 由已存在的分段文件决定, 为 0 且未滚动过时保持原文件名
+    private int part;
 
     /**
      * Close the file handle and rename the temp file to the permanent filename.
@@ -59,6 +98,24 @@ public class BucketFileWriter {
         fileExtensionCounter = new AtomicLong(System.currentTimeMillis());
     }
 
+    /**
+     * 设置按大小/数量滚动, 需要在 open 之前调用
+     *
+     * @param rollSize  分段写入字节数达到该值时滚动, 0 为不开启
+     * @param rollCount 分段写入 event 数达到该值时滚动, 0 为不开启
+     */
+    public void setRollPolicy(long rollSize, long rollCount) {
+        this.rollSize = rollSize;
+        this.rollCount = rollCount;
+    }
+
+    /**
+     * 设置落盘方式, 需要在 open 之前调用
+     */
+    public void setDurability(GroupCommitter.Durability durability) {
+        this.durability = durability;
+    }
+
     public String getCounterTime() {
         return new DateTime(fileExtensionCounter.get())
                 .toString("yyyy-MM-dd_HH:mm:ss");
@@ -66,37 +123,84 @@ public class BucketFileWriter {
 
     public void open(final String filePath, String serializerType,
                      Context serializerContext, final long rollInterval,
-                     final ScheduledExecutorService timedRollerPool,
+                     final TimingWheel roller,
                      final FileWriterLinkedHashMap sfWriters) throws IOException {
+        open(filePath, serializerType, serializerContext, rollInterval, roller,
+                sfWriters, CompressionCodec.NONE);
+    }
+
+    public void open(final String filePath, String serializerType,
+                     Context serializerContext, final long rollInterval,
+                     final TimingWheel roller,
+                     final FileWriterLinkedHashMap sfWriters,
+                     CompressionCodec codec) throws IOException {
 
+        this.codec = codec;
         this.dstTmpFile = getDstTmpFile(filePath);
         File file = new File(this.dstTmpFile);
         file.getParentFile().mkdirs();
 
-        // file write mode : append
-        outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
+        if (isRolling()) {
+            // 分段序号取第一个不存在的分段与计数文件中记录的序号中较大的一个, 重启或重新打开后保持连续
+            part = 0;
+            // 重传时为 .redo 后的路径
+            while (new File(getPartPath(this.filePath, part, true)).exists()
+                    || new File(getPartPath(this.filePath, part, false)).exists()) {
+                part++;
+            }
+            // 淘汰后重新打开时继续写入同一分段, 已滚动的分段可能已被归档移走
+            restoreCount(file);
+        }
+        // 计数文件只表示上次打开后已正常关闭, 关闭时重新写入
+        File countFile = getCountFile();
+        boolean closedCleanly = countFile.exists();
+        if (countFile.exists() && !countFile.delete()) {
+            throw new IOException("Unable to delete " + countFile);
+        }
+        if (codec != CompressionCodec.NONE && file.length() > 0 && !closedCleanly) {
+            setAsideUnclosed(file);
+        }
+
+        // file write mode : append, 压缩时每次打开开始一个新的压缩流
+        // 关闭压缩流时不关闭文件, 写入压缩尾部后还需要 force
+        fileStream = new FileOutputStream(file, true);
+        outputStream = new BufferedOutputStream(codec.wrap(new FilterOutputStream(fileStream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }));
         logger.info("open file, filename = " + file.getAbsolutePath());
         serializer = EventSerializerFactory.getInstance(serializerType, serializerContext, outputStream);
         serializer.afterCreate();
 
         if (rollInterval > 0) {
             logger.info("batch flush for {} seconds ...", rollInterval);
-            Callable<Void> action = new Callable<Void>() {
+            Runnable action = new Runnable() {
                 @Override
-                public Void call() throws Exception {
+                public void run() {
                     logger.info(
                             "Rolling file ({}): Roll scheduled after {} sec elapsed.",
                             filePath + "_" + getCounterTime() + IN_USE_EXT,
                             rollInterval);
-                    if (sfWriters.containsKey(filePath)) {
-                        sfWriters.remove(filePath);
-                    }
+                    // 文件可能已被淘汰并重新打开, 只移除自己
+                    sfWriters.remove(filePath, BucketFileWriter.this);
 
-                    close();
-                    return null;
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        logger.warn("Roll file failed: " + filePath, e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
             };
-            timedRollerPool.schedule(action, rollInterval, TimeUnit.SECONDS);
+            rollTimeout = roller.schedule(action, rollInterval, TimeUnit.SECONDS);
         }
     }
 
@@ -108,22 +212,181 @@ public class BucketFileWriter {
      * @return
      */
     private String getDstTmpFile(String filePath) {
+        this.filePath = resolvePath(filePath, codec);
+        return this.filePath + codec.getExtension() + IN_USE_EXT;
+    }
 
-        // if file exist, add redo suffix
-        if (new File(filePath).exists()) {
-            return getDstTmpFile(filePath + REDO_FILE_SUFFIX);
+    /**
+     * 临时文件存在时为同一次传输, 淘汰、定时 roll 或分段滚动后重新打开
+     * if file exist, add redo suffix, 分段传输时最终文件不存在, 以第一个分段判断
+     */
+    private static String resolvePath(String filePath, CompressionCodec codec) {
+        String path = filePath;
+        while (!new File(path + codec.getExtension() + IN_USE_EXT).exists()
+                && (new File(path + codec.getExtension()).exists()
+                || new File(getPartPath(path, 0, true, codec)).exists()
+                || new File(getPartPath(path, 0, false, codec)).exists())) {
+            path = path + REDO_FILE_SUFFIX;
         }
+        return path;
+    }
 
-        this.filePath = filePath;
-        return filePath + IN_USE_EXT;
+    /**
+     * 文件是否有以该压缩格式写入、尚未完成的临时文件
+     * 结束标记不带按块传输的 header, 重新打开时以此判断之前的数据是否按块 (不压缩) 写入
+     */
+    public static boolean isInProgress(String filePath, CompressionCodec codec) {
+        return new File(resolvePath(filePath, codec) + codec.getExtension() + IN_USE_EXT).exists();
+    }
+
+    private boolean isRolling() {
+        return rollSize > 0 || rollCount > 0;
+    }
+
+    private File getCountFile() {
+        File tmpFile = new File(dstTmpFile);
+        return new File(tmpFile.getParentFile(), "." + tmpFile.getName() + COUNT_FILE_SUFFIX);
+    }
+
+    /**
+     * 恢复当前分段已写入的未压缩字节数、event 数与分段序号
+     * 计数文件不存在时 (异常退出) 以临时文件大小估计, 压缩时为压缩后的大小, 偏小; 序号取目录中第一个不存在的分段
+     */
+    private void restoreCount(File file) {
+        writtenBytes = file.length();
+        writtenEvents = 0L;
+        File countFile = getCountFile();
+        if (!countFile.exists()) {
+            return;
+        }
+        try {
+            String[] counts = Files.toString(countFile, Charsets.UTF_8).trim().split(" ");
+            writtenBytes = Long.parseLong(counts[0]);
+            writtenEvents = Long.parseLong(counts[1]);
+            // 旧版本的计数文件没有分段序号
+            if (counts.length > 2) {
+                part = Math.max(part, Integer.parseInt(counts[2]));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Read part count failed: " + countFile, e);
+        }
     }
 
-    public void append(Event event) throws IOException {
+    /**
+     * 上次没有正常关闭的压缩临时文件末尾缺少 gzip 尾部 / frame 结束标记, 继续追加后整个文件无法解压
+     * 重命名为未完成的文件, 新数据写入新的临时文件 (分段传输时写入下一个分段)
+     */
+    private void setAsideUnclosed(File file) throws IOException {
+        String dstPath;
+        if (isRolling()) {
+            dstPath = getPartPath(filePath, part, false);
+            part++;
+        } else {
+            String base = filePath + FILE_NOT_COMPLETED_SUFFIX;
+            while (new File(base + codec.getExtension()).exists()) {
+                base = base + REDO_FILE_SUFFIX;
+            }
+            dstPath = base + codec.getExtension();
+        }
+        logger.warn("Compressed file was not closed cleanly, renaming {} to {}", file, dstPath);
+        if (!file.renameTo(new File(dstPath))) {
+            throw new IOException("Unable to rename " + file + " to " + dstPath);
+        }
+        writtenBytes = 0L;
+        writtenEvents = 0L;
+    }
+
+    private void saveCount() throws IOException {
+        Files.write(writtenBytes + " " + writtenEvents + " " + part, getCountFile(), Charsets.UTF_8);
+    }
+
+    /**
+     * 写入 event, 与 close 互斥
+     *
+     * @throws IOException 文件已被定时 roll 或淘汰关闭
+     */
+    public synchronized void append(Event event) throws IOException {
+        checkNotClosed();
+        unsynced = true;
         serializer.write(event);
+        writtenBytes += event.getBody().length;
+        writtenEvents++;
     }
 
+    /**
+     * 当前分段是否达到滚动条件, 按块传输的文件不滚动
+     */
+    public boolean shouldRoll() {
+        return blockChannel == null
+                && ((rollSize > 0 && writtenBytes >= rollSize)
+                || (rollCount > 0 && writtenEvents >= rollCount));
+    }
+
+    /**
+     * 将关闭后的当前分段重命名为 文件名.part-序号
+     */
+    public void renamePart() {
+        rename(getPartPath(filePath, part, true));
+        part++;
+        // 保留空的临时文件, 标记传输未结束, 重新打开下一段时不按重传处理
+        // 计数文件记录下一个分段序号, 已滚动的分段被归档移走后序号保持连续
+        writtenBytes = 0L;
+        writtenEvents = 0L;
+        try {
+            new File(dstTmpFile).createNewFile();
+            saveCount();
+        } catch (IOException e) {
+            logger.warn("Create tmp file failed: " + dstTmpFile, e);
+        }
+    }
+
+    private String getPartPath(String filePath, int part, boolean success) {
+        return getPartPath(filePath, part, success, codec);
+    }
+
+    private static String getPartPath(String filePath, int part, boolean success, CompressionCodec codec) {
+        return filePath + String.format(PART_SUFFIX_FORMAT, part)
+                + (success ? "" : FILE_NOT_COMPLETED_SUFFIX) + codec.getExtension();
+    }
 
-    public void flush() throws IOException {
+    /**
+     * 按块传输: 将块写入源文件中相同的偏移位置, 重复写入同一块结果不变
+     * 按偏移量写入不支持压缩, 按块传输的文件需要以 CompressionCodec.NONE 打开
+     *
+     * @param offset 块在源文件中的偏移量
+     * @param block  块内容
+     * @throws IOException 文件已被关闭或写入失败
+     */
+    public synchronized void appendBlock(long offset, byte[] block) throws IOException {
+        checkNotClosed();
+        if (codec != CompressionCodec.NONE) {
+            throw new IOException("Block transfer does not support compression: " + dstTmpFile);
+        }
+        if (blockChannel == null) {
+            blockChannel = new RandomAccessFile(dstTmpFile, "rw").getChannel();
+        }
+        unsynced = true;
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        while (buffer.hasRemaining()) {
+            blockChannel.write(buffer, offset + buffer.position());
+        }
+    }
+
+
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Writer has been closed: " + dstTmpFile);
+        }
+    }
+
+    /**
+     * 文件已关闭时忽略, 淘汰的 writer 可能已在后台关闭
+     * close 已 flush 并落盘全部数据, 关闭后的写入会抛出异常, 不会有未 flush 的数据
+     */
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
         // flush event to outputStream
         serializer.flush();
         // flush stream to disk
@@ -131,6 +394,38 @@ public class BucketFileWriter {
     }
 
 
+    /**
+     * 将已 flush 的数据落盘, 文件已关闭时忽略
+     * 可以与写入线程并发调用, 调用前需要先 flush
+     *
+     * @param metadata 是否同时同步文件元数据
+     * @throws IOException
+     */
+    public synchronized void sync(boolean metadata) throws IOException {
+        if (closed) {
+            return;
+        }
+        force(metadata);
+    }
+
+    /**
+     * force 文件与按块写入的 channel
+     */
+    protected void force(boolean metadata) throws IOException {
+        if (fileStream != null) {
+            fileStream.getChannel().force(metadata);
+        }
+        if (blockChannel != null) {
+            blockChannel.force(metadata);
+        }
+        unsynced = false;
+    }
+
+
+    public boolean isClosed() {
+        return closed;
+    }
+
     /**
      * Rename bucketPath file from .tmp to permanent location if success
      * Rename bucketPath file from .tmp to .uncompleted suffix if failed
@@ -138,14 +433,30 @@ public class BucketFileWriter {
      * @param success 文件是否完整 传输成功
      */
     public void renameBucket(boolean success) {
-        File srcPath = new File(dstTmpFile);
-        String dstPath = success ? filePath : filePath + FILE_NOT_COMPLETED_SUFFIX;
+        // 已经滚动出分段时最后一段同样按序号命名
+        if (part > 0) {
+            // 上一段恰好在文件结束前滚动, 不再生成空的最后一段
+            if (success && writtenBytes == 0 && writtenEvents == 0) {
+                new File(dstTmpFile).delete();
+                getCountFile().delete();
+                return;
+            }
+            rename(getPartPath(filePath, part, success));
+            return;
+        }
+        // 压缩后缀放在最后, 如 a.log.uncompleted.gz
+        rename((success ? filePath : filePath + FILE_NOT_COMPLETED_SUFFIX)
+                + codec.getExtension());
+    }
 
+    private void rename(String dstPath) {
+        File srcPath = new File(dstTmpFile);
         File dstFile = new File(dstPath);
         if (srcPath.exists()) {
             String msg = "Renaming " + srcPath + " to " + dstPath;
             if (srcPath.renameTo(dstFile)) {
                 logger.info(msg);
+                getCountFile().delete();
             } else {
                 logger.error(msg + " failed");
             }
@@ -153,15 +464,46 @@ public class BucketFileWriter {
     }
 
     /**
-     * flush 文件并关闭
+     * flush 文件并关闭, 开启落盘时关闭前 force 尚未落盘的数据
+     * 定时 roll 与淘汰可能在写入之后、组提交之前关闭文件, 组提交会跳过已关闭的文件
      *
      * @throws IOException
      * @throws InterruptedException
      */
     public synchronized void close() throws IOException, InterruptedException {
-        if (outputStream != null) {
-            outputStream.flush();
-            outputStream.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // 文件已关闭, 取消定时 roll
+        if (rollTimeout != null) {
+            rollTimeout.cancel();
+            rollTimeout = null;
+        }
+        try {
+            if (outputStream != null) {
+                outputStream.flush();
+                // 写入压缩尾部, 不关闭文件
+                outputStream.close();
+                // 压缩尾部在组提交之后写入, 同样需要落盘
+                if (codec != CompressionCodec.NONE) {
+                    unsynced = true;
+                }
+            }
+            if (unsynced && durability != GroupCommitter.Durability.NONE) {
+                force(durability == GroupCommitter.Durability.FSYNC);
+            }
+            // 数据与压缩尾部落盘后再写入正常关闭的标记
+            if ((isRolling() || codec != CompressionCodec.NONE) && blockChannel == null) {
+                saveCount();
+            }
+        } finally {
+            if (fileStream != null) {
+                fileStream.close();
+            }
+            if (blockChannel != null) {
+                blockChannel.close();
+            }
         }
     }
 }
@@ -0,0 +1,154 @@
+package cn.migu.flume.helper;
+
+import cn.migu.flume.configuration.MGSpoolDirConfig.ConsumeOrder;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 一次目录扫描得到的候选文件队列, 按消费策略依次取出直到耗尽
+ * - OLDEST/YOUNGEST: 每个文件只 stat 一次 (readAttributes 同时取得文件类型与修改时间)
+ * - NAME: 按文件名字典序, 排序不需要 stat
+ * - RANDOM: 按目录列出的顺序
+ * 修改时间相同时按文件名字典序
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/9/22 16:40
+ */
+public class CandidateFileQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(CandidateFileQueue.class);
+
+    private static final Comparator<Candidate> BY_NAME = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            return c1.name.compareTo(c2.name);
+        }
+    };
+
+    private static final Comparator<Candidate> OLDEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            int compare = compareLong(c1.lastModified, c2.lastModified);
+            return compare != 0 ? compare : c1.name.compareTo(c2.name);
+        }
+    };
+
+    private static final Comparator<Candidate> YOUNGEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            int compare = compareLong(c2.lastModified, c1.lastModified);
+            return compare != 0 ? compare : c1.name.compareTo(c2.name);
+        }
+    };
+
+    private final Queue<Candidate> queue;
+    // 扫描时没有 stat 过的文件, 取出时再确认是普通文件
+    private final boolean checkOnPoll;
+
+    private CandidateFileQueue(Queue<Candidate> queue, boolean checkOnPoll) {
+        this.queue = queue;
+        this.checkOnPoll = checkOnPoll;
+    }
+
+    /**
+     * @param files 已按文件名过滤的候选文件
+     * @param order 消费策略
+     */
+    public static CandidateFileQueue of(File[] files, ConsumeOrder order) {
+        Preconditions.checkNotNull(order);
+        if (files == null) {
+            files = new File[0];
+        }
+
+        switch (order) {
+            case RANDOM: {
+                Queue<Candidate> queue = new ArrayDeque<Candidate>(Math.max(files.length, 1));
+                for (File file : files) {
+                    queue.add(new Candidate(file, 0L));
+                }
+                return new CandidateFileQueue(queue, true);
+            }
+            case NAME: {
+                Queue<Candidate> queue = new PriorityQueue<Candidate>(Math.max(files.length, 1), BY_NAME);
+                for (File file : files) {
+                    queue.add(new Candidate(file, 0L));
+                }
+                return new CandidateFileQueue(queue, true);
+            }
+            default: {
+                Queue<Candidate> queue = new PriorityQueue<Candidate>(Math.max(files.length, 1),
+                        order == ConsumeOrder.YOUNGEST ? YOUNGEST_FIRST : OLDEST_FIRST);
+                for (File file : files) {
+                    try {
+                        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                        if (attrs.isRegularFile()) {
+                            queue.add(new Candidate(file, attrs.lastModifiedTime().toMillis()));
+                        }
+                    } catch (IOException e) {
+                        // File could have been deleted in the interim
+                        logger.warn("Could not stat file: {}", file);
+                    }
+                }
+                return new CandidateFileQueue(queue, false);
+            }
+        }
+    }
+
+    /**
+     * 取出下一个文件, 队列耗尽时返回 null
+     */
+    public File poll() {
+        Candidate candidate;
+        while ((candidate = queue.poll()) != null) {
+            if (!checkOnPoll || candidate.file.isFile()) {
+                return candidate.file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 查看下一个文件但不取出, 不确认是否为普通文件; 队列耗尽时返回 null
+     */
+    public File peek() {
+        Candidate candidate = queue.peek();
+        return candidate == null ? null : candidate.file;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    private static int compareLong(long x, long y) {
+        return x < y ? -1 : (x == y ? 0 : 1);
+    }
+
+    private static class Candidate {
+        private final File file;
+        private final String name;
+        private final long lastModified;
+
+        Candidate(File file, long lastModified) {
+            this.file = file;
+            this.name = file.getName();
+            this.lastModified = lastModified;
+        }
+    }
+}
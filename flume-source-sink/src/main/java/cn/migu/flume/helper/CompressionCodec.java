@@ -0,0 +1,89 @@
+package cn.migu.flume.helper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: sink 输出文件的压缩格式
+ * - GZIP: jdk 自带, flush 时输出 sync flush 块, 异常退出后已 flush 的数据可以解压到文件末尾 (解压工具会报告流不完整)
+ * - LZ4 / ZSTD: 需要将 lz4-java / zstd-jni 放入 flume lib 目录, 通过反射加载
+ * 每次打开文件都会开始一个新的压缩流, 正常关闭后追加写入得到多个连续的 gzip member / frame, 解压工具可以直接处理
+ * 未正常关闭的压缩流之后不能再追加, 见 BucketFileWriter 重新打开时的处理
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/18 10:10
+ */
+public enum CompressionCodec {
+
+    NONE("", null),
+    GZIP(".gz", null),
+    LZ4(".lz4", "net.jpountz.lz4.LZ4FrameOutputStream"),
+    ZSTD(".zst", "com.github.luben.zstd.ZstdOutputStream");
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final String extension;
+    private final String streamClass;
+
+    CompressionCodec(String extension, String streamClass) {
+        this.extension = extension;
+        this.streamClass = streamClass;
+    }
+
+    /**
+     * 压缩文件后缀, 如 .gz
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * 检查压缩库是否在 classpath 中
+     *
+     * @throws IllegalArgumentException 压缩库不存在
+     */
+    public void checkAvailable() {
+        if (streamClass != null) {
+            try {
+                Class.forName(streamClass);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Compression codec " + this
+                        + " is not available, " + streamClass + " not found in classpath", e);
+            }
+        }
+    }
+
+    /**
+     * 包装输出流
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case NONE:
+                return out;
+            case GZIP:
+                return new GZIPOutputStream(out, GZIP_BUFFER_SIZE, true);
+            default:
+                return newStream(out);
+        }
+    }
+
+    private OutputStream newStream(OutputStream out) throws IOException {
+        try {
+            Constructor<?> constructor = Class.forName(streamClass).getConstructor(OutputStream.class);
+            return (OutputStream) constructor.newInstance(out);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Create " + this + " stream failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Create " + this + " stream failed", e);
+        }
+    }
+}
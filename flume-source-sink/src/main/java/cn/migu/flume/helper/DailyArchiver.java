@@ -0,0 +1,352 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 每日归档, 替代 shell/daily-backup 中的 backup.sh / compress.sh
+ * - 扫描 sink 输出目录 (目录/主机名/文件名), 按文件修改日期归档今天之前已传输完成的文件 (忽略 .tmp)
+ * - 直接从输出目录读取写入压缩包, 不再先复制到备份目录
+ * - 按 日期/主机 并行压缩, 输出 归档目录/日期/主机名-时间.zip, 已压缩的文件 (.gz/.lz4/.zst) 不再重复压缩
+ * - 每天一个增量索引 归档目录/日期/.index, 记录已归档的文件, 再次执行只处理新文件
+ * - 归档后源文件可以保留、移动 (同一文件系统内 rename) 或删除
+ * 可以在 MGSpoolFileSink 中按 cron 定时执行, 也可以通过 main 方法单独执行
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/19 14:30
+ * @Update : v1.1
+ * 1. 忽略隐藏文件 (分段计数文件 .文件名.tmp.count); 文件仍在传输 (存在 .tmp) 时不归档已滚动出的分段
+ * 2. move 时当天已移动过同名文件 (重传) 不再覆盖, 加 .redo 后缀
+ */
+public class DailyArchiver implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DailyArchiver.class);
+
+    private static final String IN_USE_EXT = ".tmp";
+    private static final String INDEX_FILE = ".index";
+    private static final String MOVED_DIR = "files";
+    private static final String REDO_SUFFIX = ".redo";
+    private static final String DAY_FORMAT = "yyyyMMdd";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // BucketFileWriter 滚动出的分段: 文件名.part-序号[.uncompleted][压缩后缀]
+    private static final Pattern PART_PATTERN = Pattern.compile("(.+)\\.part-\\d+(?:\\.uncompleted)?(.*)");
+
+    // 已经压缩过的文件只打包不压缩
+    private static final String[] COMPRESSED_EXTENSIONS = {".gz", ".lz4", ".zst", ".zip", ".tar"};
+
+    /**
+     * 归档后源文件的处理方式
+     */
+    public enum RetainMode {
+        KEEP, MOVE, DELETE
+    }
+
+    private final File sourceDir;
+    private final File archiveDir;
+    private final int threads;
+    private final RetainMode retainMode;
+
+    public DailyArchiver(File sourceDir, File archiveDir, int threads, RetainMode retainMode) {
+        Preconditions.checkArgument(threads > 0, "threads must be greater than 0");
+        this.sourceDir = Preconditions.checkNotNull(sourceDir);
+        this.archiveDir = Preconditions.checkNotNull(archiveDir);
+        this.threads = threads;
+        this.retainMode = Preconditions.checkNotNull(retainMode);
+    }
+
+    @Override
+    public void run() {
+        try {
+            archive(new DateTime().withTimeAtStartOfDay().getMillis());
+        } catch (Throwable t) {
+            logger.error("Daily archive failed", t);
+        }
+    }
+
+    /**
+     * 归档修改时间早于 cutoff 的文件
+     *
+     * @return 本次归档的文件数
+     */
+    public int archive(long cutoff) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        // 每次执行生成新的压缩包, 以执行时间区分
+        final String suffix = new DateTime(start).toString("HHmmss");
+        // 日期 -> 主机名 -> 文件
+        Map<String, Map<String, List<File>>> groups = scan(cutoff);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("daily-archiver-%d").build());
+        try {
+            List<Future<Integer>> futures = Lists.newArrayList();
+            for (Map.Entry<String, Map<String, List<File>>> day : groups.entrySet()) {
+                final DayIndex index = new DayIndex(new File(archiveDir, day.getKey()));
+                for (Map.Entry<String, List<File>> host : day.getValue().entrySet()) {
+                    final String hostName = host.getKey();
+                    final List<File> files = index.filterArchived(hostName, host.getValue());
+                    if (files.isEmpty()) {
+                        continue;
+                    }
+                    futures.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return archiveHost(index, hostName, files, suffix);
+                        }
+                    }));
+                }
+            }
+
+            int archived = 0;
+            int failed = 0;
+            for (Future<Integer> future : futures) {
+                try {
+                    archived += future.get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    logger.error("Archive failed", e.getCause());
+                }
+            }
+            logger.info("Archived {} files in {} ms, {} archives failed",
+                    archived, System.currentTimeMillis() - start, failed);
+            return archived;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 扫描输出目录, 按 日期/主机 分组
+     */
+    private Map<String, Map<String, List<File>>> scan(long cutoff) {
+        Map<String, Map<String, List<File>>> groups = Maps.newTreeMap();
+        File[] hosts = sourceDir.listFiles();
+        if (hosts == null) {
+            logger.warn("Source directory {} does not exist", sourceDir);
+            return groups;
+        }
+        for (File host : hosts) {
+            if (!host.isDirectory() || host.getName().startsWith(".")) {
+                continue;
+            }
+            File[] files = host.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                // 正在写入的文件与隐藏的计数文件不归档
+                if (!file.isFile() || file.getName().endsWith(IN_USE_EXT)
+                        || file.getName().startsWith(".") || isPartInUse(file)) {
+                    continue;
+                }
+                long modified = file.lastModified();
+                if (modified >= cutoff) {
+                    continue;
+                }
+                String day = new DateTime(modified).toString(DAY_FORMAT);
+                Map<String, List<File>> dayGroup = groups.get(day);
+                if (dayGroup == null) {
+                    dayGroup = Maps.newTreeMap();
+                    groups.put(day, dayGroup);
+                }
+                List<File> hostFiles = dayGroup.get(host.getName());
+                if (hostFiles == null) {
+                    hostFiles = Lists.newArrayList();
+                    dayGroup.put(host.getName(), hostFiles);
+                }
+                hostFiles.add(file);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * 将一个主机当天的文件写入一个压缩包, 完成后记录索引并处理源文件
+     */
+    private int archiveHost(DayIndex index, String host, List<File> files, String suffix)
+            throws IOException {
+        File zip = new File(index.dir, host + "-" + suffix + ".zip");
+        // 同一秒内多次执行时不覆盖已有的压缩包
+        for (int i = 1; zip.exists(); i++) {
+            zip = new File(index.dir, host + "-" + suffix + "-" + i + ".zip");
+        }
+        File tmp = new File(index.dir, zip.getName() + IN_USE_EXT);
+
+        FileOutputStream fileStream = new FileOutputStream(tmp);
+        try {
+            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(fileStream, BUFFER_SIZE));
+            for (File file : files) {
+                zos.setLevel(isCompressed(file.getName()) ? Deflater.NO_COMPRESSION
+                        : Deflater.DEFAULT_COMPRESSION);
+                ZipEntry entry = new ZipEntry(file.getName());
+                entry.setTime(file.lastModified());
+                zos.putNextEntry(entry);
+                InputStream in = new FileInputStream(file);
+                try {
+                    ByteStreams.copy(in, zos);
+                } finally {
+                    in.close();
+                }
+                zos.closeEntry();
+            }
+            zos.finish();
+            zos.flush();
+            fileStream.getChannel().force(true);
+        } finally {
+            fileStream.close();
+        }
+        if (!tmp.renameTo(zip)) {
+            throw new IOException("Rename " + tmp + " to " + zip + " failed");
+        }
+
+        index.record(host, files);
+        for (File file : files) {
+            retain(index, host, file);
+        }
+        logger.info("Archived {} files of host {} to {}", files.size(), host, zip);
+        return files.size();
+    }
+
+    private void retain(DayIndex index, String host, File file) throws IOException {
+        switch (retainMode) {
+            case MOVE:
+                File hostDir = new File(new File(index.dir, MOVED_DIR), host);
+                String name = file.getName();
+                // 同一天重传的同名文件不覆盖之前移动的文件, 与 sink 重传一样加 .redo 后缀
+                while (new File(hostDir, name).exists()) {
+                    name = name + REDO_SUFFIX;
+                }
+                File target = new File(hostDir, name);
+                Files.createParentDirs(target);
+                // 目标文件已存在时失败, 不覆盖
+                java.nio.file.Files.move(file.toPath(), target.toPath());
+                break;
+            case DELETE:
+                if (!file.delete()) {
+                    logger.warn("Delete archived file {} failed", file);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 分段文件 文件名.part-序号[.uncompleted][压缩后缀] 对应的 文件名[压缩后缀].tmp 存在时, 文件仍在传输
+     */
+    private static boolean isPartInUse(File file) {
+        Matcher matcher = PART_PATTERN.matcher(file.getName());
+        return matcher.matches()
+                && new File(file.getParentFile(), matcher.group(1) + matcher.group(2) + IN_USE_EXT).exists();
+    }
+
+    private static boolean isCompressed(String name) {
+        String lower = name.toLowerCase(Locale.ENGLISH);
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 每天的增量索引, 每行: 主机名/文件名 \t 大小 \t 修改时间
+     */
+    private static class DayIndex {
+
+        private final File dir;
+        private final File file;
+        private final Set<String> archived = Sets.newHashSet();
+
+        DayIndex(File dir) throws IOException {
+            this.dir = dir;
+            this.file = new File(dir, INDEX_FILE);
+            dir.mkdirs();
+            if (file.exists()) {
+                for (String line : Files.readLines(file, Charsets.UTF_8)) {
+                    if (!line.isEmpty()) {
+                        archived.add(line);
+                    }
+                }
+            }
+        }
+
+        List<File> filterArchived(String host, List<File> files) {
+            List<File> result = Lists.newArrayList();
+            for (File f : files) {
+                if (!archived.contains(key(host, f))) {
+                    result.add(f);
+                }
+            }
+            return result;
+        }
+
+        synchronized void record(String host, List<File> files) throws IOException {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8);
+            try {
+                for (File f : files) {
+                    String key = key(host, f);
+                    writer.write(key);
+                    writer.write('\n');
+                    archived.add(key);
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        private static String key(String host, File f) {
+            return host + "/" + f.getName() + "\t" + f.length() + "\t" + f.lastModified();
+        }
+    }
+
+    /**
+     * 单独执行: DailyArchiver 输出目录 归档目录 [线程数] [keep|move|delete]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: DailyArchiver <sourceDir> <archiveDir> [threads] [keep|move|delete]");
+            System.exit(1);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        RetainMode retainMode = args.length > 3
+                ? RetainMode.valueOf(args[3].toUpperCase(Locale.ENGLISH)) : RetainMode.KEEP;
+        new DailyArchiver(new File(args[0]), new File(args[1]), threads, retainMode)
+                .archive(new DateTime().withTimeAtStartOfDay().getMillis());
+    }
+}
@@ -0,0 +1,233 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 基于 WatchService 的目录监听
+ * - 内存中维护待采集文件集合, 文件创建/修改/删除时增量更新, 不再每次全量 listFiles
+ * - 文件最后一次变化超过 settle 时长后才作为候选文件, 避免读取正在写入的文件
+ * - 定期全量扫描目录校准 (事件丢失、OVERFLOW 时同样触发)
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/9/20 15:10
+ */
+public class DirectoryWatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    // WatchService poll 超时时间
+    private static final long POLL_TIMEOUT_MS = 1000L;
+
+    /**
+     * 有新文件可以采集时回调
+     */
+    public interface Listener {
+        void onFilesReady();
+    }
+
+    private final File spoolDirectory;
+    private final DoneFileRegistry doneFileRegistry;
+    private final long settleMillis;
+    private final long reconcileMillis;
+    private final Listener listener;
+
+    // 待采集文件名 -> 最后一次变化时间
+    private final Map<String, Long> candidates = Maps.newHashMap();
+
+    private WatchService watchService;
+    private Thread watchThread;
+    private volatile boolean running;
+    private long lastReconcile;
+    // 上一次检查时已稳定的时间点, 变化时间在此之前的文件已经通知过
+    private long settledCutoff;
+
+    public DirectoryWatcher(File spoolDirectory, DoneFileRegistry doneFileRegistry,
+                            long settleMillis, long reconcileMillis, Listener listener) {
+        this.spoolDirectory = Preconditions.checkNotNull(spoolDirectory);
+        this.doneFileRegistry = Preconditions.checkNotNull(doneFileRegistry);
+        this.settleMillis = settleMillis;
+        this.reconcileMillis = reconcileMillis;
+        this.listener = Preconditions.checkNotNull(listener);
+    }
+
+    public synchronized void start() throws IOException {
+        Path dir = spoolDirectory.toPath();
+        watchService = dir.getFileSystem().newWatchService();
+        dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+        // 注册完成后再全量扫描, 保证扫描与事件之间不会漏掉文件
+        reconcile();
+
+        running = true;
+        watchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchLoop();
+            }
+        }, "spool-watcher-" + spoolDirectory.getName());
+        watchThread.setDaemon(true);
+        watchThread.start();
+        logger.info("watching directory: {}, settle: {} ms, reconcile every {} ms",
+                spoolDirectory, settleMillis, reconcileMillis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * 返回已稳定且满足过滤条件的待采集文件, 已采集的文件从集合中移除
+     *
+     * @param filter 过滤条件
+     */
+    public synchronized File[] listFiles(FileFilter filter) {
+        long cutoff = System.currentTimeMillis() - settleMillis;
+        List<File> files = Lists.newArrayList();
+        Iterator<Map.Entry<String, Long>> it = candidates.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (doneFileRegistry.contains(entry.getKey())) {
+                it.remove();
+                continue;
+            }
+            if (entry.getValue() > cutoff) {
+                continue;
+            }
+            File file = new File(spoolDirectory, entry.getKey());
+            if (filter.accept(file)) {
+                files.add(file);
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    private void watchLoop() {
+        while (running) {
+            try {
+                WatchKey key = watchService.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handleEvents(key);
+                    if (!key.reset()) {
+                        logger.error("watch key is no longer valid, stop watching: {}", spoolDirectory);
+                        return;
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastReconcile >= reconcileMillis) {
+                    reconcile();
+                }
+                if (hasNewlySettled(now)) {
+                    listener.onFilesReady();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (Throwable t) {
+                logger.error("directory watcher error: " + spoolDirectory, t);
+            }
+        }
+    }
+
+    private synchronized void handleEvents(WatchKey key) {
+        long now = System.currentTimeMillis();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+            if (kind == OVERFLOW) {
+                logger.warn("watch events overflow, reconcile directory: {}", spoolDirectory);
+                reconcile();
+                continue;
+            }
+
+            String fileName = event.context().toString();
+            if (fileName.startsWith(".")) {
+                continue;
+            }
+            if (kind == ENTRY_DELETE) {
+                candidates.remove(fileName);
+            } else {
+                candidates.put(fileName, now);
+            }
+        }
+    }
+
+    /**
+     * 全量扫描目录校准待采集文件集合
+     */
+    private synchronized void reconcile() {
+        String[] names = spoolDirectory.list();
+        if (names == null) {
+            logger.error("unable to list directory: {}", spoolDirectory);
+            return;
+        }
+
+        Map<String, Long> latest = Maps.newHashMapWithExpectedSize(names.length);
+        for (String name : names) {
+            // 已采集文件在此处被访问, 同时刷新其最后出现时间
+            if (name.startsWith(".") || doneFileRegistry.contains(name)) {
+                continue;
+            }
+            Long changed = candidates.get(name);
+            if (changed == null) {
+                changed = new File(spoolDirectory, name).lastModified();
+            }
+            latest.put(name, changed);
+        }
+        candidates.clear();
+        candidates.putAll(latest);
+        lastReconcile = System.currentTimeMillis();
+        // 扫描出的文件重新判断是否需要通知
+        settledCutoff = Long.MIN_VALUE;
+        logger.info("reconcile directory: {}, {} pending files", spoolDirectory, candidates.size());
+
+        try {
+            doneFileRegistry.maybeCompact();
+        } catch (IOException e) {
+            logger.warn("compact done-record-file failed", e);
+        }
+    }
+
+    /**
+     * 是否有文件在上次检查之后变为稳定状态
+     */
+    private synchronized boolean hasNewlySettled(long now) {
+        long cutoff = now - settleMillis;
+        boolean found = false;
+        for (Long changed : candidates.values()) {
+            if (changed > settledCutoff && changed <= cutoff) {
+                found = true;
+                break;
+            }
+        }
+        settledCutoff = cutoff;
+        return found;
+    }
+}
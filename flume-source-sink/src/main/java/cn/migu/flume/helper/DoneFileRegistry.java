@@ -0,0 +1,286 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import static cn.migu.flume.configuration.MGSpoolDirConfig.DATE_FORMAT;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 已采集文件登记表
+ * - 内存中只保存文件名的 64 位指纹 (开放寻址哈希表)，查找 O(1)
+ * - 已采集记录追加写入 journal (.done-files.meta，格式与旧版本一致)
+ * - journal 达到阈值后压缩为二进制快照 (.done-files.idx)，并清空 journal
+ * - 压缩时清理长时间未在目录中出现(源文件已不存在)的记录
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/9/12 10:20
+ */
+public class DoneFileRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(DoneFileRegistry.class);
+
+    // 快照文件头
+    private static final int SNAPSHOT_MAGIC = 0x4D47444F;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_SUFFIX = ".idx";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // 空槽位标记, 指纹为 0 时映射为 1
+    private static final long EMPTY = 0L;
+    private static final int MIN_CAPACITY = 1024;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    // 追加写 journal, 兼容旧版本 .done-files.meta
+    private final File journalFile;
+    // 二进制快照
+    private final File snapshotFile;
+    // journal 记录数超过阈值即压缩
+    private final int compactThreshold;
+    // 超过该时长未在目录中出现的记录会在压缩时清除, <= 0 表示不清除
+    private final long expireMillis;
+
+    // 开放寻址哈希表: 指纹 -> 最后一次在目录中出现的时间 (分钟)
+    private long[] fingerprints;
+    private int[] lastSeen;
+    private int size;
+
+    private int journalEntries;
+    private long lastCompaction;
+
+    public DoneFileRegistry(File journalFile, int compactThreshold, long expireMillis) {
+        this.journalFile = Preconditions.checkNotNull(journalFile);
+        this.snapshotFile = new File(journalFile.getParentFile(),
+                stripSuffix(journalFile.getName()) + SNAPSHOT_SUFFIX);
+        this.compactThreshold = compactThreshold;
+        this.expireMillis = expireMillis;
+        this.fingerprints = new long[MIN_CAPACITY];
+        this.lastSeen = new int[MIN_CAPACITY];
+        this.lastCompaction = System.currentTimeMillis();
+    }
+
+    /**
+     * 启动时加载快照与 journal, journal 过大时 (例如旧版本遗留) 立即压缩
+     */
+    public synchronized void load() throws IOException {
+        int now = nowMinutes();
+        if (snapshotFile.exists()) {
+            loadSnapshot();
+        }
+
+        if (journalFile.exists()) {
+            BufferedReader reader = Files.newReader(journalFile, Charsets.UTF_8);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab < 0) {
+                        continue;
+                    }
+                    String fileName = line.substring(tab + 1).trim();
+                    if (!fileName.isEmpty()) {
+                        put(fingerprint(fileName), now);
+                        journalEntries++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } else {
+            logger.warn("done record file does not exist now");
+        }
+
+        logger.info("load {} done files, {} entries in journal", size, journalEntries);
+        if (compactThreshold > 0 && journalEntries >= compactThreshold) {
+            // 尚未扫描目录, 最后出现时间不可信, 只合并不清理
+            compact(false);
+        }
+    }
+
+    /**
+     * 文件是否已采集, 命中时刷新最后出现时间
+     *
+     * @param fileName 文件名
+     */
+    public synchronized boolean contains(String fileName) {
+        int slot = find(fingerprint(fileName));
+        if (fingerprints[slot] == EMPTY) {
+            return false;
+        }
+        lastSeen[slot] = nowMinutes();
+        return true;
+    }
+
+    /**
+     * 记录已采集文件, 写入内存并追加到 journal
+     *
+     * @param fileName 文件名
+     */
+    public synchronized void record(String fileName) throws IOException {
+        put(fingerprint(fileName), nowMinutes());
+
+        String line = DateTime.now().toString(DATE_FORMAT) + "\t" + fileName;
+        Files.append(line + "\n", journalFile, Charsets.UTF_8);
+        journalEntries++;
+    }
+
+    /**
+     * 目录扫描完成后调用, journal 达到阈值或距上次压缩超过一天时压缩
+     */
+    public synchronized void maybeCompact() throws IOException {
+        boolean journalFull = compactThreshold > 0 && journalEntries >= compactThreshold;
+        boolean expireDue = expireMillis > 0 &&
+                System.currentTimeMillis() - lastCompaction >= TimeUnit.DAYS.toMillis(1);
+        if (journalFull || expireDue) {
+            compact(true);
+        }
+    }
+
+    /**
+     * 清理过期记录, 写入新快照后清空 journal
+     * 快照先写临时文件再 rename, journal 清空前宕机只会导致重复加载, 不会丢失记录
+     *
+     * @param expire 是否清理过期记录, 只有在完整扫描目录之后才能清理
+     */
+    public synchronized void compact(boolean expire) throws IOException {
+        int expireBefore = expire && expireMillis > 0 ?
+                nowMinutes() - (int) TimeUnit.MILLISECONDS.toMinutes(expireMillis) : Integer.MIN_VALUE;
+
+        long[] oldFingerprints = fingerprints;
+        int[] oldLastSeen = lastSeen;
+        int before = size;
+        fingerprints = new long[oldFingerprints.length];
+        lastSeen = new int[oldFingerprints.length];
+        size = 0;
+        for (int i = 0; i < oldFingerprints.length; i++) {
+            if (oldFingerprints[i] != EMPTY && oldLastSeen[i] >= expireBefore) {
+                put(oldFingerprints[i], oldLastSeen[i]);
+            }
+        }
+
+        File tmp = new File(snapshotFile.getPath() + TMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(size);
+            for (int i = 0; i < fingerprints.length; i++) {
+                if (fingerprints[i] != EMPTY) {
+                    out.writeLong(fingerprints[i]);
+                    out.writeInt(lastSeen[i]);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(snapshotFile)) {
+            throw new IOException("Unable to rename " + tmp + " to " + snapshotFile);
+        }
+
+        // truncate journal
+        new FileOutputStream(journalFile).close();
+
+        logger.info("compact done files: {} -> {} entries, {} journal entries merged",
+                before, size, journalEntries);
+        journalEntries = 0;
+        lastCompaction = System.currentTimeMillis();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void loadSnapshot() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(snapshotFile)));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown done files snapshot format: " + snapshotFile);
+            }
+            int count = in.readInt();
+            ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                long fp = in.readLong();
+                put(fp, in.readInt());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void put(long fp, int seen) {
+        ensureCapacity(size + 1);
+        int slot = find(fp);
+        if (fingerprints[slot] == EMPTY) {
+            fingerprints[slot] = fp;
+            size++;
+        }
+        lastSeen[slot] = seen;
+    }
+
+    /**
+     * 线性探测, 返回指纹所在槽位或应插入的空槽位
+     */
+    private int find(long fp) {
+        int mask = fingerprints.length - 1;
+        int slot = (int) (fp ^ (fp >>> 32)) & mask;
+        while (fingerprints[slot] != EMPTY && fingerprints[slot] != fp) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * 负载因子保持在 0.5 以下
+     */
+    private void ensureCapacity(int expected) {
+        if (expected * 2 <= fingerprints.length) {
+            return;
+        }
+        int capacity = fingerprints.length;
+        while (expected * 2 > capacity) {
+            capacity <<= 1;
+        }
+
+        long[] oldFingerprints = fingerprints;
+        int[] oldLastSeen = lastSeen;
+        fingerprints = new long[capacity];
+        lastSeen = new int[capacity];
+        for (int i = 0; i < oldFingerprints.length; i++) {
+            if (oldFingerprints[i] != EMPTY) {
+                int slot = find(oldFingerprints[i]);
+                fingerprints[slot] = oldFingerprints[i];
+                lastSeen[slot] = oldLastSeen[i];
+            }
+        }
+    }
+
+    static long fingerprint(String fileName) {
+        long fp = HASH.hashBytes(fileName.getBytes(Charsets.UTF_8)).asLong();
+        return fp == EMPTY ? 1L : fp;
+    }
+
+    private static int nowMinutes() {
+        return (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    private static String stripSuffix(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,172 @@
+package cn.migu.flume.helper;
+
+import cn.migu.flume.configuration.MGSpoolDirConfig.FileIdentityMode;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 文件标识, 用于已采集文件登记与读取位置
+ * - NAME: 文件名, 不访问文件, 与旧版本一致
+ * - INODE: 设备号 + inode + 文件头部指纹 (前 fingerprintBytes 字节的 murmur3 hash),
+ * 文件重命名后标识不变, 不会重新采集; 文件名被新文件复用时标识不同, 不会被误判为已采集
+ * INODE 模式每次判断需要 stat 一次, 文件大小、修改时间与 inode 均未变化时使用缓存的指纹, 不重复读取文件头
+ * 不支持 inode 的文件系统以文件名代替设备号 + inode
+ * 增量采集的文件仍在增长, 小于 fingerprintBytes 时指纹随内容变化, 读取位置只按设备号 + inode 记录 ({@link #fileKey(File)})
+ * 非线程安全, 每个 reader 一个实例
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/25 14:00
+ */
+public class FileIdentityResolver {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int MAX_CACHED = 64 * 1024;
+
+    private final FileIdentityMode mode;
+    private final int fingerprintBytes;
+
+    // 文件路径 -> 最近一次计算的标识, 按访问顺序淘汰
+    private final Map<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        private static final long serialVersionUID = 4133862349728147723L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    public FileIdentityResolver(FileIdentityMode mode, int fingerprintBytes) {
+        Preconditions.checkArgument(fingerprintBytes > 0, "fingerprintBytes must be greater than 0");
+        this.mode = Preconditions.checkNotNull(mode);
+        this.fingerprintBytes = fingerprintBytes;
+    }
+
+    public FileIdentityMode getMode() {
+        return mode;
+    }
+
+    /**
+     * 获取文件标识
+     *
+     * @throws IOException 文件不存在或无法读取
+     */
+    public String identify(File file) throws IOException {
+        if (mode == FileIdentityMode.NAME) {
+            return file.getName();
+        }
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object fileKey = attrs.fileKey();
+        long size = attrs.size();
+        // 保留文件系统的时间精度, inode 被复用时尽量区分
+        FileTime lastModified = attrs.lastModifiedTime();
+
+        String path = file.getPath();
+        Cached cached = cache.get(path);
+        if (cached != null && cached.size == size && cached.lastModified.equals(lastModified)
+                && (fileKey == null ? cached.fileKey == null : fileKey.equals(cached.fileKey))) {
+            return cached.identity;
+        }
+
+        String identity = (fileKey != null ? fileKey.toString() : file.getName())
+                + "#" + fingerprint(file, size);
+        cache.put(path, new Cached(fileKey, size, lastModified, identity));
+        return identity;
+    }
+
+    /**
+     * 设备号 + inode, 不包含指纹, 文件增长时不变
+     * NAME 模式或不支持 inode 的文件系统返回文件路径
+     *
+     * @throws IOException 文件不存在或无法读取
+     */
+    public String fileKey(File file) throws IOException {
+        if (mode == FileIdentityMode.NAME) {
+            return file.getPath();
+        }
+        Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        return fileKey != null ? fileKey.toString() : file.getPath();
+    }
+
+    /**
+     * 文件头校验值, 用于增量采集时确认保留的读取位置属于同一个文件
+     * 高 32 位为前 n 字节的 hash, 低 32 位为 n, n = min(文件大小, fingerprintBytes)
+     * 只追加写入的文件已有的文件头不变, 文件被截断重写、替换或 inode 被新文件复用时不一致
+     *
+     * @throws IOException 文件不存在或无法读取
+     */
+    public long headCheck(File file) throws IOException {
+        byte[] head = readHead(file, (int) Math.min(file.length(), fingerprintBytes));
+        return ((long) HASH.hashBytes(head).asInt() << 32) | head.length;
+    }
+
+    /**
+     * 文件头是否与 {@link #headCheck(File)} 记录的一致, 未记录 (0) 时视为一致
+     *
+     * @throws IOException 文件不存在或无法读取
+     */
+    public boolean matchesHead(File file, long headCheck) throws IOException {
+        int length = (int) headCheck;
+        if (length == 0) {
+            return true;
+        }
+        byte[] head = readHead(file, length);
+        return head.length == length && HASH.hashBytes(head).asInt() == (int) (headCheck >>> 32);
+    }
+
+    /**
+     * 文件头部指纹, 文件小于 fingerprintBytes 时取整个文件
+     */
+    private String fingerprint(File file, long size) throws IOException {
+        return HASH.hashBytes(readHead(file, (int) Math.min(size, fingerprintBytes))).toString();
+    }
+
+    /**
+     * 读取文件前 length 字节, 文件较短时返回实际读取的内容
+     */
+    private static byte[] readHead(File file, int length) throws IOException {
+        byte[] head = new byte[length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < head.length) {
+                int n = in.read(head, read, head.length - read);
+                if (n < 0) {
+                    return Arrays.copyOf(head, read);
+                }
+                read += n;
+            }
+            return head;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Cached {
+        private final Object fileKey;
+        private final long size;
+        private final FileTime lastModified;
+        private final String identity;
+
+        Cached(Object fileKey, long size, FileTime lastModified, String identity) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.identity = identity;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 文件预读, 读取当前文件时在后台顺序读取下一个候选文件, 提前加载到系统页缓存
+ * - 从读取起点开始最多预读 budgetBytes 字节, 读到的内容直接丢弃, 只为触发磁盘顺序读与内核 readahead
+ * - 同一时间只预读一个文件, 提交新文件时取消上一个未完成的预读
+ * - 预读失败 (文件被删除等) 只记录日志, 不影响读取
+ * 机械盘上切换文件时不再等待冷数据从磁盘读取
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/27 10:00
+ */
+public class FilePrefetcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FilePrefetcher.class);
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private final long budgetBytes;
+    private final ExecutorService executor;
+    // 预读缓冲, 只在预读线程中使用
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+
+    private Future<?> pending;
+    private File pendingFile;
+
+    /**
+     * @param budgetBytes 每个文件最多预读的字节数
+     */
+    public FilePrefetcher(long budgetBytes) {
+        Preconditions.checkArgument(budgetBytes > 0, "budgetBytes must be greater than 0");
+        this.budgetBytes = budgetBytes;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("spool-prefetcher-%d").setDaemon(true).build());
+    }
+
+    /**
+     * 在后台预读文件
+     *
+     * @param file   下一个要读取的文件
+     * @param offset 读取起点
+     */
+    public synchronized void prefetch(final File file, final long offset) {
+        if (file.equals(pendingFile) && !pending.isDone()) {
+            return;
+        }
+        if (pending != null) {
+            pending.cancel(true);
+        }
+        pendingFile = file;
+        pending = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                warm(file, offset);
+            }
+        });
+    }
+
+    private void warm(File file, long offset) {
+        long total = 0L;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long position = offset;
+                long end = Math.min(channel.size(), offset + budgetBytes);
+                while (position < end && !Thread.currentThread().isInterrupted()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(CHUNK_SIZE, end - position));
+                    int n = channel.read(buffer, position);
+                    if (n < 0) {
+                        break;
+                    }
+                    position += n;
+                    total += n;
+                }
+            } finally {
+                raf.close();
+            }
+            logger.debug("Prefetched {} bytes of {}", total, file);
+        } catch (ClosedByInterruptException e) {
+            // 已被新的预读取消
+        } catch (FileNotFoundException e) {
+            logger.debug("Prefetch skipped, file not found: {}", file);
+        } catch (IOException e) {
+            logger.warn("Prefetch failed: {}", file, e);
+        } finally {
+            prefetchedBytes.addAndGet(total);
+        }
+    }
+
+    /**
+     * 已预读的总字节数
+     */
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    /**
+     * 等待当前的预读完成, 仅用于测试
+     */
+    void await() throws Exception {
+        Future<?> future;
+        synchronized (this) {
+            future = pending;
+        }
+        if (future != null) {
+            future.get();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
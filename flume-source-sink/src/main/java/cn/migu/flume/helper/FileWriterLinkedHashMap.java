@@ -1,53 +1,202 @@
 package cn.migu.flume.helper;
 
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * All rights Reserved, Designed by Migu.cn
  *
- * @Description: file writer Hash 链表, 当 writer handler 超过最大值，移除最旧的那一个
+ * @Description: file writer 缓存, 按访问顺序淘汰, 当 writer handler 超过最大值，移除最久未使用的那一个
+ * update: 改为线程安全, sink 写线程与 roll 定时任务可以并发访问
+ * update: 淘汰的 writer 交给后台线程关闭, 不阻塞写入; 重新打开同一文件前等待其关闭完成
+ * update: 统计命中、淘汰、重新打开次数
  * @Author : ChenYao
  * @Version : v1.0
  * @Date : 2016/8/1 11:25
  */
-public class FileWriterLinkedHashMap extends
-        LinkedHashMap<String, BucketFileWriter> {
+public class FileWriterLinkedHashMap {
 
     private static final Logger logger = LoggerFactory
             .getLogger(FileWriterLinkedHashMap.class);
 
-    private static final long serialVersionUID = -7860596835613215998L;
     private final int maxOpenFiles;
 
+    // access order, 只在持有锁时访问
+    private final LinkedHashMap<String, BucketFileWriter> writers;
+    // 最近淘汰的文件, 用于统计重新打开次数
+    private final LinkedHashMap<String, Boolean> evicted;
+    // 正在后台关闭的 writer
+    private final ConcurrentMap<String, Future<?>> closing = new ConcurrentHashMap<String, Future<?>>();
+    private final ExecutorService closer;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong reopenCount = new AtomicLong();
+
     public FileWriterLinkedHashMap(int maxOpenFiles) {
-        super(16, 0.75f, true); // stock initial capacity/load, access
         this.maxOpenFiles = maxOpenFiles;
+        this.writers = new LinkedHashMap<String, BucketFileWriter>(16, 0.75f, true);
+        final int maxEvicted = Math.max(16, maxOpenFiles * 4);
+        this.evicted = new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+            private static final long serialVersionUID = -7860596835613215998L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, Boolean> eldest) {
+                return size() > maxEvicted;
+            }
+        };
+        this.closer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("file-writer-closer-%d").setDaemon(true).build());
     }
 
-    @Override
-    protected boolean removeEldestEntry(Entry<String, BucketFileWriter> eldest) {
-        if (size() > maxOpenFiles) {
-            // If we have more that max open files, then close the last one
-            // and
-            // return true
-            try {
-                eldest.getValue().close();
-            } catch (IOException e) {
-                logger.warn(eldest.getKey(), e);
-            } catch (InterruptedException e) {
-                logger.warn(eldest.getKey(), e);
-                Thread.currentThread().interrupt();
+    /**
+     * 获取 writer, 不存在时如果同一文件正在关闭, 等待关闭完成后返回 null
+     */
+    public BucketFileWriter get(String key) {
+        BucketFileWriter writer;
+        synchronized (this) {
+            writer = writers.get(key);
+            if (writer == null && evicted.remove(key) != null) {
+                reopenCount.incrementAndGet();
             }
+        }
+        if (writer != null) {
+            hitCount.incrementAndGet();
+            return writer;
+        }
+        missCount.incrementAndGet();
+        awaitClose(key);
+        return null;
+    }
+
+    public void put(String key, BucketFileWriter writer) {
+        BucketFileWriter eldest = null;
+        String eldestKey = null;
+        synchronized (this) {
+            writers.put(key, writer);
+            if (writers.size() > maxOpenFiles) {
+                Iterator<Entry<String, BucketFileWriter>> it = writers.entrySet().iterator();
+                Entry<String, BucketFileWriter> entry = it.next();
+                eldestKey = entry.getKey();
+                eldest = entry.getValue();
+                it.remove();
+                evicted.put(eldestKey, Boolean.TRUE);
+            }
+        }
+        if (eldest != null) {
+            evictionCount.incrementAndGet();
+            closeAsync(eldestKey, eldest);
+        }
+    }
+
+    public synchronized boolean containsKey(String key) {
+        return writers.containsKey(key);
+    }
+
+    public synchronized BucketFileWriter remove(String key) {
+        return writers.remove(key);
+    }
+
+    /**
+     * 只有当前 writer 仍是 key 对应的 writer 时才移除
+     */
+    public synchronized boolean remove(String key, BucketFileWriter writer) {
+        if (writers.get(key) == writer) {
+            writers.remove(key);
             return true;
-        } else {
-            return false;
         }
+        return false;
+    }
+
+    public synchronized int size() {
+        return writers.size();
+    }
+
+    private void closeAsync(final String key, final BucketFileWriter writer) {
+        // 清理已经关闭完成的记录
+        if (closing.size() > maxOpenFiles) {
+            Iterator<Future<?>> it = closing.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+        }
+        closing.put(key, closer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.close();
+                } catch (Exception e) {
+                    logger.warn(key, e);
+                }
+            }
+        }));
+    }
+
+    private void awaitClose(String key) {
+        Future<?> future = closing.get(key);
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+            closing.remove(key, future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn(key, e.getCause());
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
     }
-}
 
+    public long getReopenCount() {
+        return reopenCount.get();
+    }
+
+    /**
+     * 等待后台关闭完成并停止关闭线程
+     */
+    public void shutdown() {
+        closer.shutdown();
+        try {
+            closer.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return String.format("open: %d, hit rate: %.2f%%, evictions: %d, reopens: %d",
+                size(), total == 0 ? 0D : hits * 100D / total, getEvictionCount(), getReopenCount());
+    }
+}
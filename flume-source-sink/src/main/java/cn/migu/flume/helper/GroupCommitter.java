@@ -0,0 +1,189 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 组提交: 合并多个批次、多个文件的 FileChannel.force 调用
+ * - 提交事务前调用 sync() 登记需要落盘的文件并等待
+ * - 后台线程收到第一个请求后最多等待 windowMillis, 或待落盘字节数达到 windowBytes 后立即执行,
+ *   期间到达的请求合并为一轮, 每个文件每轮只 force 一次
+ * - force 进行中到达的请求进入下一轮
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/17 09:40
+ */
+public class GroupCommitter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+
+    /**
+     * 落盘方式
+     * NONE: 只写入 page cache
+     * FDATASYNC: force(false), 只同步数据
+     * FSYNC: force(true), 同时同步文件元数据
+     */
+    public enum Durability {
+        NONE, FDATASYNC, FSYNC
+    }
+
+    private final boolean metadata;
+    private final long windowNanos;
+    private final long windowBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition requested = lock.newCondition();
+    private final Condition completed = lock.newCondition();
+
+    // 下一轮待落盘的文件
+    private Set<BucketFileWriter> pending = Sets.newHashSet();
+    private long pendingBytes;
+    // 下一轮的轮次号
+    private long pendingRound = 1L;
+    private long completedRound;
+    private long failedRound;
+    private IOException failure;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public GroupCommitter(String name, Durability durability, long windowMillis, long windowBytes) {
+        Preconditions.checkArgument(durability != Durability.NONE, "Durability NONE needs no commit");
+        Preconditions.checkArgument(windowMillis >= 0, "windowMillis must not be negative");
+        this.metadata = durability == Durability.FSYNC;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.windowBytes = windowBytes;
+        this.thread = new ThreadFactoryBuilder().setNameFormat(name).setDaemon(true).build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        commitLoop();
+                    }
+                });
+        thread.start();
+    }
+
+    /**
+     * 登记需要落盘的文件并等待所在轮次完成, 调用前需要先 flush
+     *
+     * @param writers 本批次写过的文件
+     * @param bytes   本批次写入的字节数
+     */
+    public void sync(Collection<BucketFileWriter> writers, long bytes)
+            throws IOException, InterruptedException {
+        if (writers.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!running) {
+                throw new IOException("Group committer has been closed");
+            }
+            pending.addAll(writers);
+            pendingBytes += bytes;
+            long round = pendingRound;
+            requested.signal();
+            while (completedRound < round) {
+                completed.await();
+            }
+            if (failedRound == round) {
+                throw new IOException("Sync files failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while (running) {
+            Set<BucketFileWriter> batch;
+            long round;
+            lock.lock();
+            try {
+                while (running && pending.isEmpty()) {
+                    requested.await();
+                }
+                // 等待更多请求合并到本轮
+                long deadline = System.nanoTime() + windowNanos;
+                long remaining = windowNanos;
+                while (running && remaining > 0 && pendingBytes < windowBytes) {
+                    requested.awaitNanos(remaining);
+                    remaining = deadline - System.nanoTime();
+                }
+                batch = pending;
+                round = pendingRound;
+                pending = Sets.newHashSet();
+                pendingBytes = 0L;
+                pendingRound++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            for (BucketFileWriter writer : batch) {
+                try {
+                    writer.sync(metadata);
+                } catch (IOException e) {
+                    logger.warn("Sync file failed", e);
+                    error = e;
+                }
+            }
+
+            lock.lock();
+            try {
+                completedRound = round;
+                if (error != null) {
+                    failedRound = round;
+                    failure = error;
+                }
+                completed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 关闭后唤醒所有等待者
+        lock.lock();
+        try {
+            completedRound = Long.MAX_VALUE;
+            failedRound = pendingRound;
+            failure = new IOException("Group committer has been closed");
+            completed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            requested.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
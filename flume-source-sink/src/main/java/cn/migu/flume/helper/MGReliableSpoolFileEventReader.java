@@ -2,11 +2,12 @@ package cn.migu.flume.helper;
 
 
 import cn.migu.flume.configuration.MGSpoolDirConfig;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -16,7 +17,6 @@ import org.apache.flume.annotations.InterfaceStability;
 import org.apache.flume.client.avro.ReliableEventReader;
 import org.apache.flume.event.EventBuilder;
 import org.apache.flume.serialization.*;
-import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,10 +26,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import static cn.migu.flume.configuration.MGSpoolDirConfig.DATE_FORMAT;
-
 
 /**
  * All rights Reserved, Designed by Migu.cn
@@ -38,12 +37,26 @@ import static cn.migu.flume.configuration.MGSpoolDirConfig.DATE_FORMAT;
  * @Author : ChenYao
  * @Version : v1.0
  * @Date : 2016/6/24 11:25
+ * @Update : 读取位置改为记录在 {@link PositionTrackerStore} 中, 切换文件不再删除重建元数据文件,
+ * 旧版本的 .flumespool-main.meta 启动时迁移
+ * @Update : 支持按 inode + 文件头指纹识别文件 (fileIdentity = inode), 重命名的文件不重复采集, 复用的文件名不会被跳过
+ * @Update : 增量采集 (tailFiles): 仍在写入的文件读到末尾时保留读取位置, 下次采集只读取新增内容,
+ * 静默超过 tailQuietSeconds 后才发送传输完成标记
+ * @Update : 打开文件后在后台预读下一个候选文件 (prefetchBytes), 切换文件时不再等待冷数据从磁盘读取
+ * @Update : 文件路径、文件名 header 每个文件只创建一份, 由该文件的 event 共享 ({@link SharedHeaderEvent}), 不再逐个 event put
  */
 public class MGReliableSpoolFileEventReader implements ReliableEventReader {
 
     private static final Logger logger = LoggerFactory.getLogger(MGReliableSpoolFileEventReader.class);
 
     private static final String metaFileName = ".flumespool-main.meta";
+    private static final String metaFilePrefix = ".flumespool-main-";
+    private static final String metaFileSuffix = ".meta";
+    private static final String positionLogName = ".flumespool-positions.log";
+    // 切换为 INODE 模式的时间
+    private static final String identitySinceName = ".flumespool-identity-since";
+    // 增量采集时与读取位置一起记录的文件头校验值
+    private static final String TAIL_HEAD_KEY_SUFFIX = "#head";
 
     private final File spoolDirectory;
     private final String completedSuffix;
@@ -65,7 +78,31 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
 
     private static final String doneFilesName = ".done-files.meta";
     private Optional<FileInfo> currentFile = Optional.absent();
-    private List<String> doneFileList;
+    private final DoneFileRegistry doneFileRegistry;
+    // 所有文件的读取位置, 并行读取时多个 reader 共享, 由第一个 reader 负责关闭
+    private final PositionTrackerStore positionStore;
+    private final boolean ownsPositionStore;
+    // 已采集登记与读取位置使用的文件标识
+    private final FileIdentityResolver identityResolver;
+    // 切换为 INODE 模式的时间, 之前修改的文件兼容按文件名登记的记录
+    private final long identitySince;
+    // 增量采集
+    private final boolean tailFiles;
+    private final long tailQuietMillis;
+    // 本次扫描的文件中有仍在写入的文件
+    private boolean tailParked;
+    // INODE 模式增量采集的读取位置 key 前缀, 区分不同目录, 用于清理已删除文件的记录
+    private final String tailKeyPrefix;
+    private long lastTailPrune;
+    // 下一个候选文件预读, 未开启时为 null
+    private final FilePrefetcher prefetcher;
+
+    // 并行读取时, 当前 reader 只负责 hash(文件名) % readerCount == readerIndex 的文件
+    private final int readerIndex;
+    private final int readerCount;
+
+    // 监听模式下从 watcher 获取候选文件, 不再全量扫描目录
+    private DirectoryWatcher directoryWatcher;
 
     /**
      * Always contains the last file from which lines have been read.
@@ -74,9 +111,9 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
     private boolean committed = true;
 
     /**
-     * Instance var to Cache directory listing
+     * Instance var to Cache directory listing, sorted by consume order
      */
-    private Iterator<File> candidateFileIter = null;
+    private CandidateFileQueue candidateQueue = null;
 
     /**
      * Create a ReliableSpoolingFileEventReader to watch the given directory.
@@ -88,7 +125,15 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
                                            String deserializerType, Context deserializerContext,
                                            String fileDoneTag, String inputCharset,
                                            DecodeErrorPolicy decodeErrorPolicy,
-                                           MGSpoolDirConfig.ConsumeOrder consumeOrder, String deletePolicy) throws IOException {
+                                           MGSpoolDirConfig.ConsumeOrder consumeOrder, String deletePolicy,
+                                           int doneFileCompactThreshold, int doneFileExpireDays,
+                                           DoneFileRegistry doneFileRegistry,
+                                           PositionTrackerStore positionStore, long positionSyncInterval,
+                                           MGSpoolDirConfig.FileIdentityMode fileIdentityMode,
+                                           int fingerprintBytes,
+                                           boolean tailFiles, long tailQuietMillis,
+                                           long prefetchBytes,
+                                           int readerIndex, int readerCount) throws IOException {
 
         // Sanity checks
         Preconditions.checkNotNull(spoolDirectory);
@@ -100,6 +145,8 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         Preconditions.checkNotNull(fileDoneTag);
         Preconditions.checkNotNull(inputCharset);
         Preconditions.checkNotNull(deletePolicy);
+        Preconditions.checkArgument(readerCount > 0 && readerIndex >= 0 && readerIndex < readerCount,
+                "Invalid reader index %s of %s", readerIndex, readerCount);
 
 
         if (logger.isDebugEnabled()) {
@@ -130,6 +177,13 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         this.decodeErrorPolicy = Preconditions.checkNotNull(decodeErrorPolicy);
         this.consumeOrder = Preconditions.checkNotNull(consumeOrder);
         this.fileDoneHeader = fileDoneTag;
+        this.readerIndex = readerIndex;
+        this.readerCount = readerCount;
+        this.identityResolver = new FileIdentityResolver(fileIdentityMode, fingerprintBytes);
+        this.tailFiles = tailFiles;
+        this.tailQuietMillis = tailQuietMillis;
+        this.tailKeyPrefix = spoolDirectory.getAbsolutePath() + "#";
+        this.prefetcher = prefetchBytes > 0 ? new FilePrefetcher(prefetchBytes) : null;
 
         File trackerDirectory = new File(trackerDirPath);
 
@@ -152,20 +206,97 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
                     trackerDirectory);
         }
 
-        this.metaFile = new File(trackerDirectory, metaFileName);
+        if (positionStore != null) {
+            this.positionStore = positionStore;
+            this.ownsPositionStore = false;
+        } else {
+            this.positionStore = new PositionTrackerStore(new File(trackerDirectory, positionLogName),
+                    positionSyncInterval);
+            this.ownsPositionStore = true;
+        }
+
+        // 旧版本每个 reader 使用独立的 position tracker 文件, 第一个 reader 为 .flumespool-main.meta
+        this.metaFile = new File(trackerDirectory, readerIndex == 0 ? metaFileName :
+                metaFilePrefix + readerIndex + metaFileSuffix);
         if (metaFile.exists() && metaFile.length() == 0) {
             deleteMetaFile();
         }
+        migrateMetaFile();
+
+        this.identitySince = initIdentitySince(new File(trackerDirectory, identitySinceName));
 
         this.doneFiles = new File(trackerDirectory, doneFilesName);
-        initDoneFiles();
+        if (doneFileRegistry != null) {
+            // 并行读取时多个 reader 共享同一份已采集文件记录
+            this.doneFileRegistry = doneFileRegistry;
+        } else {
+            this.doneFileRegistry = new DoneFileRegistry(doneFiles, doneFileCompactThreshold,
+                    TimeUnit.DAYS.toMillis(doneFileExpireDays));
+            initDoneFiles();
+        }
+    }
+
+    /**
+     * 记录第一次以 INODE 模式启动的时间, 切换回 NAME 模式时删除, 再次切换时重新记录
+     */
+    private long initIdentitySince(File sinceFile) throws IOException {
+        if (identityResolver.getMode() == MGSpoolDirConfig.FileIdentityMode.NAME) {
+            if (sinceFile.exists() && !sinceFile.delete()) {
+                throw new IOException("Unable to delete " + sinceFile);
+            }
+            return 0L;
+        }
+        if (sinceFile.exists()) {
+            try {
+                return Long.parseLong(Files.toString(sinceFile, Charsets.UTF_8).trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid content in {}, reset identity switch time", sinceFile, e);
+            }
+        }
+        long now = System.currentTimeMillis();
+        Files.write(Long.toString(now), sinceFile, Charsets.UTF_8);
+        return now;
     }
 
     /**
      * 在启动时加载已读文件列表
      */
     private void initDoneFiles() {
-        this.doneFileList = getDoneFiles();
+        try {
+            doneFileRegistry.load();
+        } catch (IOException e) {
+            logger.error("can't open done-record-file: {}", this.doneFiles.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * 将旧版本元数据文件中正在读取的文件位置迁移到 positionStore
+     */
+    private void migrateMetaFile() throws IOException {
+        if (!metaFile.exists()) {
+            return;
+        }
+        PositionTracker legacy = DurablePositionTracker.getInstance(metaFile, metaFile.getPath());
+        String target = legacy.getTarget();
+        long position = legacy.getPosition();
+        legacy.close();
+        if (!positionStore.contains(target)) {
+            positionStore.getTracker(target).storePosition(position);
+            logger.info("Migrated read position of {} from {}: {}", target, metaFile, position);
+        }
+        deleteMetaFile();
+    }
+
+    public DoneFileRegistry getDoneFileRegistry() {
+        return doneFileRegistry;
+    }
+
+    public PositionTrackerStore getPositionStore() {
+        return positionStore;
+    }
+
+    public void setDirectoryWatcher(DirectoryWatcher directoryWatcher) {
+        this.directoryWatcher = directoryWatcher;
     }
 
     /**
@@ -215,6 +346,25 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         EventDeserializer des = currentFile.get().getDeserializer();
         List<Event> events = des.readEvents(numEvents);
 
+        // 增量采集: 仍在写入的文件读到末尾时暂停, 保留读取位置, 继续读取下一个文件
+        while (events.isEmpty() && tailFiles) {
+            if (!isGrowing(currentFile.get())) {
+                // 文件已静默, 读取保留的末尾不完整行后结束
+                if (des instanceof MappedLineDeserializer
+                        && ((MappedLineDeserializer) des).releasePartialLine()) {
+                    events = des.readEvents(numEvents);
+                }
+                break;
+            }
+            parkCurrentFile();
+            currentFile = getNextFile();
+            if (!currentFile.isPresent()) {
+                return Collections.emptyList();
+            }
+            des = currentFile.get().getDeserializer();
+            events = des.readEvents(numEvents);
+        }
+
         // 当前文件已经读完, 记录已读文件，发送文件读取完毕消息
         if (events.isEmpty()) {
             String fileName = currentFile.get().getFile().getName();
@@ -239,17 +389,12 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         }
 
 
-        if (annotateFileName) {
-            String filename = currentFile.get().getFile().getAbsolutePath();
-            for (Event event : events) {
-                event.getHeaders().put(fileNameHeader, filename);
-            }
-        }
-
-        if (annotateBaseName) {
-            String basename = currentFile.get().getFile().getName();
-            for (Event event : events) {
-                event.getHeaders().put(baseNameHeader, basename);
+        // 内存映射按行读取时 event 创建时已共享文件 header
+        Map<String, String> fileHeaders = currentFile.get().getHeaders();
+        if (!fileHeaders.isEmpty() && !(des instanceof MappedLineDeserializer)) {
+            ListIterator<Event> it = events.listIterator();
+            while (it.hasNext()) {
+                it.set(SharedHeaderEvent.wrap(it.next(), fileHeaders));
             }
         }
 
@@ -264,6 +409,12 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
             currentFile.get().getDeserializer().close();
             currentFile = Optional.absent();
         }
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        if (ownsPositionStore) {
+            positionStore.close();
+        }
     }
 
     /**
@@ -298,6 +449,11 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         boolean fileChanged = false;
         // Verify that spooling assumptions hold
 
+        if (currentFile.get().isTruncated()) {
+            logger.error("!!!! File has been truncated while parked: " + fileToRoll);
+            fileChanged = true;
+        }
+
         if (fileToRoll.lastModified() != currentFile.get().getLastModified()) {
             String message = "!!!! File has been modified since being read: " + fileToRoll;
             fileChanged = true;
@@ -312,8 +468,11 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
             logger.error("read size: {}, but current size: {}", currentFile.get().getLength(), fileToRoll.length());
         }
 
-        // delete metaFile
-        deleteMetaFile();
+        // 文件读取完成, 不再需要读取位置
+        positionStore.remove(currentFile.get().getPositionKey());
+        if (tailFiles) {
+            positionStore.remove(currentFile.get().getPositionKey() + TAIL_HEAD_KEY_SUFFIX);
+        }
 
         if (!fileChanged) {
             // record done files
@@ -329,28 +488,82 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         return fileChanged;
     }
 
+    /**
+     * 文件是否仍在写入: 打开后变大, 或最近 tailQuietMillis 内修改过
+     * 文件变小 (被截断或删除) 时按文件已变化处理, 由 {@link #retireCurrentFile()} 重新采集
+     */
+    private boolean isGrowing(FileInfo fileInfo) {
+        File file = fileInfo.getFile();
+        long length = file.length();
+        if (length < fileInfo.getLength()) {
+            return false;
+        }
+        return length > fileInfo.getLength()
+                || System.currentTimeMillis() - file.lastModified() < tailQuietMillis;
+    }
+
+    /**
+     * 暂停读取仍在写入的文件, 读取位置保留在 positionStore 中, 下次采集时从已提交的位置继续
+     */
+    private void parkCurrentFile() throws IOException {
+        logger.info("file: {} is still growing, will resume next time", currentFile.get().getFile().getName());
+        currentFile.get().getDeserializer().close();
+        lastFileRead = currentFile;
+        currentFile = Optional.absent();
+        tailParked = true;
+    }
+
     /**
      * 记录已采集文件
      * 1. add to doneFile list
      * 2. record to file
      * <p>
      * update: 更新日期格式，减少空间占用
+     * update: 改为 {@link DoneFileRegistry} 登记, 内存中只保存文件名指纹
+     * update: 登记打开文件时计算的文件标识, INODE 模式下不再登记文件名
+     * update: 增量采集的文件打开后仍可能增长, 登记时重新计算标识, 与之后扫描时计算的一致
      *
      * @throws IOException
      */
     private synchronized void recordDoneFiles() throws IOException {
-        // save file uploaded
-        if (!this.doneFiles.exists()) {
-            logger.info("record done files do not exist , now create new");
-            Files.touch(this.doneFiles);
+        FileInfo fileInfo = currentFile.get();
+        String identity = fileInfo.getIdentity();
+        if (tailFiles && identityResolver.getMode() != MGSpoolDirConfig.FileIdentityMode.NAME) {
+            try {
+                identity = identityResolver.identify(fileInfo.getFile());
+            } catch (IOException e) {
+                logger.warn("Unable to identify file, record identity at open: {}", fileInfo.getFile(), e);
+            }
         }
+        doneFileRegistry.record(identity);
+    }
 
-        // write a line with date and filename
-        String fileName = currentFile.get().getFile().getName();
-        doneFileList.add(fileName);
-
-        String line = DateTime.now().toString(DATE_FORMAT) + "\t" + fileName;
-        Files.append(line + "\n", this.doneFiles, Charsets.UTF_8);
+    /**
+     * 文件是否已采集
+     * INODE 模式下按文件标识判断; 切换前按文件名登记的记录只对切换前修改的文件有效,
+     * 命中时登记该文件的标识, 之后不再查找文件名, 文件名记录不再刷新, 到期后清理
+     * 切换后复用的文件名不会被误判为已采集
+     */
+    private boolean isDone(File file) {
+        String fileName = file.getName();
+        if (identityResolver.getMode() == MGSpoolDirConfig.FileIdentityMode.NAME) {
+            return doneFileRegistry.contains(fileName);
+        }
+        try {
+            String identity = identityResolver.identify(file);
+            if (doneFileRegistry.contains(identity)) {
+                return true;
+            }
+            if (file.lastModified() < identitySince && doneFileRegistry.contains(fileName)) {
+                doneFileRegistry.record(identity);
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            // 文件可能已被删除, 打开时再处理
+            logger.debug("Unable to identify file: {}", file, e);
+            return false;
+        }
     }
 
     /**
@@ -368,36 +581,9 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         if (!fileToDelete.delete()) {
             throw new IOException("Unable to delete spool file: " + fileToDelete);
         }
-        // now we no longer need the meta file
-        deleteMetaFile();
     }
 
 
-    /**
-     * get files that has already been uploaded
-     * <p>
-     * update v2.0 性能优化，不用每次都重新读，第一次读便缓存，每次读完 append 即可
-     */
-    private List<String> getDoneFiles() {
-        List<String> doneFiles = Lists.newArrayList();
-        if (!this.doneFiles.exists()) {
-            logger.warn("done record file does not exist now");
-            return doneFiles;
-        }
-
-        try {
-            for (String s : Files.readLines(this.doneFiles, Charsets.UTF_8)) {
-                if (!s.isEmpty() && s.contains("\t")) {
-                    doneFiles.add(s.split("\t")[1].trim());
-                }
-            }
-        } catch (IOException e) {
-            logger.error("can't open done-record-file: {}", this.doneFiles.getAbsolutePath());
-        }
-
-        return doneFiles;
-    }
-
     /**
      * Returns the next file to be consumed from the chosen directory.
      * If the directory is empty or the chosen file is not readable,
@@ -410,71 +596,102 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
      * 2.按照消费策略有序读取（默认 old -> young）
      * 3.根据正则筛选所需(matchPattern)，过滤文件(ignorePattern)
      * <p>
+     * update: 每次扫描生成有序的候选队列, 依次取出直到耗尽再重新扫描
+     * update: 增量采集时队列中有暂停的文件, 队列耗尽后本次采集结束, 下次采集再重新扫描
+     * <p>
      * <p>
      */
     private Optional<FileInfo> getNextFile() {
-        List<File> candidateFiles = Collections.emptyList();
-
-        if (consumeOrder != MGSpoolDirConfig.ConsumeOrder.RANDOM ||
-                candidateFileIter == null ||
-                !candidateFileIter.hasNext()) {
-
-            /* Filter to exclude finished or hidden files */
-            FileFilter filter = new FileFilter() {
-                public boolean accept(File candidate) {
-                    String fileName = candidate.getName();
-                    if ((candidate.isDirectory()) ||
-                            (fileName.startsWith(".")) ||
-                            doneFileList.contains(fileName) ||
-                            ignorePattern.matcher(fileName).matches() ||
-                            !matchPattern.matcher(fileName).matches()
-                            ) {
-                        return false;
-                    }
-                    return true;
-                }
-            };
-            candidateFiles = Arrays.asList(spoolDirectory.listFiles(filter));
-            candidateFileIter = candidateFiles.iterator();
+        if (candidateQueue == null || candidateQueue.isEmpty()) {
+            if (tailParked) {
+                // 重新扫描会再次取到暂停的文件
+                tailParked = false;
+                return Optional.absent();
+            }
+            candidateQueue = CandidateFileQueue.of(listCandidateFiles(), consumeOrder);
         }
 
-        if (!candidateFileIter.hasNext()) { // No matching file in spooling directory.
-            return Optional.absent();
+        File selectedFile;
+        while ((selectedFile = candidateQueue.poll()) != null) {
+            Optional<FileInfo> fileInfo = openFile(selectedFile);
+            if (fileInfo.isPresent()) {
+                prefetchNextFile();
+                return fileInfo;
+            }
         }
+        // No matching file in spooling directory.
+        tailParked = false;
+        return Optional.absent();
+    }
 
-        File selectedFile = candidateFileIter.next();
-        if (consumeOrder == MGSpoolDirConfig.ConsumeOrder.RANDOM) { // Selected file is random.
-            return openFile(selectedFile);
-        } else if (consumeOrder == MGSpoolDirConfig.ConsumeOrder.YOUNGEST) {
-            for (File candidateFile : candidateFiles) {
-                long compare = selectedFile.lastModified() -
-                        candidateFile.lastModified();
-                if (compare == 0) { // ts is same pick smallest lexicographically.
-                    selectedFile = smallerLexicographical(selectedFile, candidateFile);
-                } else if (compare < 0) { // candidate is younger (cand-ts > selec-ts)
-                    selectedFile = candidateFile;
-                }
+    /**
+     * 读取当前文件时在后台预读下一个候选文件
+     * NAME 模式下从上次的读取位置开始, INODE 模式计算标识需要读取文件, 从头开始
+     */
+    private void prefetchNextFile() {
+        if (prefetcher == null) {
+            return;
+        }
+        File next = candidateQueue.peek();
+        if (next == null) {
+            return;
+        }
+        long offset = 0L;
+        if (identityResolver.getMode() == MGSpoolDirConfig.FileIdentityMode.NAME
+                && positionStore.contains(next.getPath())) {
+            try {
+                offset = positionStore.getTracker(next.getPath()).getPosition();
+            } catch (IOException e) {
+                logger.debug("Unable to get position of {}", next, e);
             }
-        } else { // default order is OLDEST
-            for (File candidateFile : candidateFiles) {
-                long compare = selectedFile.lastModified() -
-                        candidateFile.lastModified();
-                if (compare == 0) { // ts is same pick smallest lexicographically.
-                    selectedFile = smallerLexicographical(selectedFile, candidateFile);
-                } else if (compare > 0) { // candidate is older (cand-ts < selec-ts).
-                    selectedFile = candidateFile;
+        }
+        prefetcher.prefetch(next, offset);
+    }
+
+    /**
+     * 扫描目录, 只按文件名过滤, 不 stat 文件
+     * INODE 模式下通过文件名过滤的文件需要 stat 一次以判断是否已采集
+     */
+    private File[] listCandidateFiles() {
+        /* Filter to exclude finished or hidden files */
+        FileFilter filter = new FileFilter() {
+            public boolean accept(File candidate) {
+                String fileName = candidate.getName();
+                if ((fileName.startsWith(".")) ||
+                        !isOwnedFile(fileName) ||
+                        ignorePattern.matcher(fileName).matches() ||
+                        !matchPattern.matcher(fileName).matches() ||
+                        isDone(candidate)
+                        ) {
+                    return false;
                 }
+                return true;
             }
+        };
+        File[] candidateFiles = directoryWatcher != null ?
+                directoryWatcher.listFiles(filter) : spoolDirectory.listFiles(filter);
+
+        if (tailFiles && identityResolver.getMode() != MGSpoolDirConfig.FileIdentityMode.NAME
+                && System.currentTimeMillis() - lastTailPrune >= tailQuietMillis) {
+            lastTailPrune = System.currentTimeMillis();
+            pruneTailPositions();
         }
 
-        return openFile(selectedFile);
+        // 完整扫描过目录, 已登记文件的最后出现时间已刷新, 可以压缩
+        try {
+            doneFileRegistry.maybeCompact();
+        } catch (IOException e) {
+            logger.warn("compact done-record-file failed: {}", this.doneFiles.getAbsolutePath(), e);
+        }
+        return candidateFiles;
     }
 
-    private File smallerLexicographical(File f1, File f2) {
-        if (f1.getName().compareTo(f2.getName()) < 0) {
-            return f1;
-        }
-        return f2;
+    /**
+     * 并行读取时按文件名 hash 划分文件, 保证各个 reader 处理的文件互不相交
+     */
+    private boolean isOwnedFile(String fileName) {
+        return readerCount == 1 ||
+                (fileName.hashCode() & Integer.MAX_VALUE) % readerCount == readerIndex;
     }
 
     /**
@@ -484,30 +701,68 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
      */
     private Optional<FileInfo> openFile(File file) {
         try {
-            // roll the meta file, if needed
+            // 从 positionStore 获取读取位置, 新文件从 0 开始
+            // NAME 模式按路径记录位置, INODE 模式按文件标识记录, 重命名后可以继续读取
+            // INODE 模式增量采集时只按设备号 + inode 记录, 文件增长导致指纹变化时仍能继续读取, 文件采集完成后删除
             logger.info("open a file for consuming: {}", file.getName());
-            String nextPath = file.getPath();
-            PositionTracker tracker =
-                    DurablePositionTracker.getInstance(metaFile, nextPath);
-            if (!tracker.getTarget().equals(nextPath)) {
-                tracker.close();
-                deleteMetaFile();
-                tracker = DurablePositionTracker.getInstance(metaFile, nextPath);
+            String identity = identityResolver.identify(file);
+            String positionKey;
+            if (identityResolver.getMode() == MGSpoolDirConfig.FileIdentityMode.NAME) {
+                positionKey = file.getPath();
+            } else if (tailFiles) {
+                positionKey = tailKeyPrefix + identityResolver.fileKey(file);
+            } else {
+                positionKey = identity;
+            }
+            if (!positionKey.equals(file.getPath()) && !positionStore.contains(positionKey)
+                    && positionStore.contains(file.getPath())) {
+                // 切换为 INODE 模式前按路径记录的位置
+                long position = positionStore.getTracker(file.getPath()).getPosition();
+                positionStore.getTracker(positionKey).storePosition(position);
+                positionStore.remove(file.getPath());
             }
+            PositionTracker tracker = positionStore.getTracker(positionKey);
+            Map<String, String> fileHeaders = fileHeaders(file);
 
             // sanity check
-            Preconditions.checkState(tracker.getTarget().equals(nextPath),
-                    "Tracker target %s does not equal expected filename %s",
-                    tracker.getTarget(), nextPath);
-
-            ResettableInputStream in =
-                    new ResettableFileInputStream(file, tracker,
-                            ResettableFileInputStream.DEFAULT_BUF_SIZE, inputCharset,
-                            decodeErrorPolicy);
-            EventDeserializer deserializer = EventDeserializerFactory.getInstance
-                    (deserializerType, deserializerContext, in);
-
-            return Optional.of(new MGReliableSpoolFileEventReader.FileInfo(file, deserializer));
+            Preconditions.checkState(tracker.getTarget().equals(positionKey),
+                    "Tracker target %s does not equal expected key %s",
+                    tracker.getTarget(), positionKey);
+
+            // 增量采集的文件在暂停期间被截断 (copytruncate), 保留的位置超过文件大小, 从头读取并按文件已变化处理
+            boolean truncated = false;
+            if (tailFiles && tracker.getPosition() > file.length()) {
+                logger.warn("File {} was truncated while parked, position {} > size {}, read from start",
+                        file, tracker.getPosition(), file.length());
+                tracker.storePosition(0L);
+                truncated = true;
+            }
+            if (tailFiles) {
+                checkTailHead(file, positionKey, tracker);
+            }
+
+            EventDeserializer deserializer;
+            if (MGSpoolDirConfig.MMAP_LINE_DESERIALIZER.equalsIgnoreCase(deserializerType)) {
+                // 内存映射按字节读取, 不经过 ResettableFileInputStream 解码
+                MappedLineDeserializer mapped = new MappedLineDeserializer(file, tracker, deserializerContext);
+                // 增量采集时末尾不完整的行等文件写完再读取
+                mapped.setHoldPartialLine(tailFiles);
+                mapped.setSharedHeaders(fileHeaders);
+                deserializer = mapped;
+            } else if (MGSpoolDirConfig.BLOCK_DESERIALIZER.equalsIgnoreCase(deserializerType)) {
+                // 按块传输, 不拆分行
+                deserializer = new BlockDeserializer(file, tracker, deserializerContext);
+            } else {
+                ResettableInputStream in =
+                        new ResettableFileInputStream(file, tracker,
+                                ResettableFileInputStream.DEFAULT_BUF_SIZE, inputCharset,
+                                decodeErrorPolicy);
+                deserializer = EventDeserializerFactory.getInstance
+                        (deserializerType, deserializerContext, in);
+            }
+
+            return Optional.of(new MGReliableSpoolFileEventReader.FileInfo(file, identity,
+                    positionKey, fileHeaders, deserializer, truncated));
         } catch (FileNotFoundException e) {
             // File could have been deleted in the interim
             logger.warn("Could not find file: " + file, e);
@@ -518,6 +773,76 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         }
     }
 
+    /**
+     * 增量采集时校验保留的读取位置属于同一个文件, 并记录当前的文件头
+     * 文件头与记录的不一致 (文件被删除后 inode 被新文件复用, 或被替换) 时从头读取
+     * 只追加写入的文件已读取部分的文件头不变, 记录的文件头随文件增长直到 fingerprintBytes
+     */
+    private void checkTailHead(File file, String positionKey, PositionTracker tracker) throws IOException {
+        PositionTracker head = positionStore.getTracker(positionKey + TAIL_HEAD_KEY_SUFFIX);
+        if (tracker.getPosition() > 0 && !identityResolver.matchesHead(file, head.getPosition())) {
+            logger.warn("Head of file {} does not match the recorded one, position {} is discarded, read from start",
+                    file, tracker.getPosition());
+            tracker.storePosition(0L);
+        }
+        head.storePosition(identityResolver.headCheck(file));
+    }
+
+    /**
+     * INODE 模式增量采集时清理已删除文件的读取位置, 避免 inode 被复用时误用, 每 tailQuietMillis 最多一次
+     * 先取记录再列目录, 并行读取的其他 reader 之后新建的记录不会被清理
+     */
+    @VisibleForTesting
+    void pruneTailPositions() {
+        Set<String> stale = Sets.newHashSet();
+        for (String key : positionStore.keys()) {
+            if (key.startsWith(tailKeyPrefix) && !key.endsWith(TAIL_HEAD_KEY_SUFFIX)) {
+                stale.add(key);
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        File[] files = spoolDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try {
+                stale.remove(tailKeyPrefix + identityResolver.fileKey(file));
+            } catch (IOException e) {
+                // 文件已被删除
+                logger.debug("Unable to get file key: {}", file, e);
+            }
+        }
+        for (String key : stale) {
+            logger.info("Remove position of deleted file: {}", key);
+            try {
+                positionStore.remove(key);
+                positionStore.remove(key + TAIL_HEAD_KEY_SUFFIX);
+            } catch (IOException e) {
+                logger.warn("Remove position failed: {}", key, e);
+            }
+        }
+    }
+
+    /**
+     * 文件的共享 header: 文件绝对路径与文件名
+     */
+    private Map<String, String> fileHeaders(File file) {
+        if (!annotateFileName && !annotateBaseName) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> headers = Maps.newHashMapWithExpectedSize(2);
+        if (annotateFileName) {
+            headers.put(fileNameHeader, file.getAbsolutePath());
+        }
+        if (annotateBaseName) {
+            headers.put(baseNameHeader, file.getName());
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+
     private void deleteMetaFile() throws IOException {
         if (metaFile.exists() && !metaFile.delete()) {
             throw new IOException("Unable to delete old meta file " + metaFile);
@@ -532,12 +857,41 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         private final long length;
         private final long lastModified;
         private final EventDeserializer deserializer;
-
-        public FileInfo(File file, EventDeserializer deserializer) {
+        // 打开时的文件标识, 用于已采集登记
+        private final String identity;
+        private final String positionKey;
+        // 该文件所有 event 共享的 header
+        private final Map<String, String> headers;
+        // 打开时发现文件在暂停期间被截断
+        private final boolean truncated;
+
+        public FileInfo(File file, String identity, String positionKey,
+                        Map<String, String> headers, EventDeserializer deserializer,
+                        boolean truncated) {
             this.file = file;
             this.length = file.length();
             this.lastModified = file.lastModified();
+            this.identity = identity;
+            this.positionKey = positionKey;
+            this.headers = headers;
             this.deserializer = deserializer;
+            this.truncated = truncated;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public String getPositionKey() {
+            return positionKey;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
         }
 
         public long getLength() {
@@ -599,6 +953,23 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
         private MGSpoolDirConfig.ConsumeOrder consumeOrder =
                 MGSpoolDirConfig.DEFAULT_CONSUME_ORDER;
         private String matchPattern = MGSpoolDirConfig.DEFAULT_MATCH_PAT;
+        private int doneFileCompactThreshold =
+                MGSpoolDirConfig.DEFAULT_DONE_FILE_COMPACT_THRESHOLD;
+        private int doneFileExpireDays =
+                MGSpoolDirConfig.DEFAULT_DONE_FILE_EXPIRE_DAYS;
+        private DoneFileRegistry doneFileRegistry;
+        private PositionTrackerStore positionStore;
+        private long positionSyncInterval =
+                MGSpoolDirConfig.DEFAULT_TRACKER_SYNC_INTERVAL;
+        private MGSpoolDirConfig.FileIdentityMode fileIdentityMode =
+                MGSpoolDirConfig.DEFAULT_FILE_IDENTITY;
+        private int fingerprintBytes = MGSpoolDirConfig.DEFAULT_FINGERPRINT_BYTES;
+        private boolean tailFiles = MGSpoolDirConfig.DEFAULT_TAIL_FILES;
+        private long tailQuietMillis =
+                TimeUnit.SECONDS.toMillis(MGSpoolDirConfig.DEFAULT_TAIL_QUIET_SECONDS);
+        private long prefetchBytes = MGSpoolDirConfig.DEFAULT_PREFETCH_BYTES;
+        private int readerIndex = 0;
+        private int readerCount = 1;
 
         public MGReliableSpoolFileEventReader.Builder spoolDirectory(File directory) {
             this.spoolDirectory = directory;
@@ -681,12 +1052,70 @@ public class MGReliableSpoolFileEventReader implements ReliableEventReader {
             return this;
         }
 
+        public MGReliableSpoolFileEventReader.Builder doneFileCompactThreshold(int doneFileCompactThreshold) {
+            this.doneFileCompactThreshold = doneFileCompactThreshold;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder doneFileExpireDays(int doneFileExpireDays) {
+            this.doneFileExpireDays = doneFileExpireDays;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder doneFileRegistry(DoneFileRegistry doneFileRegistry) {
+            this.doneFileRegistry = doneFileRegistry;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder positionStore(PositionTrackerStore positionStore) {
+            this.positionStore = positionStore;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder positionSyncInterval(long positionSyncInterval) {
+            this.positionSyncInterval = positionSyncInterval;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder fileIdentity(MGSpoolDirConfig.FileIdentityMode fileIdentityMode) {
+            this.fileIdentityMode = fileIdentityMode;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder fingerprintBytes(int fingerprintBytes) {
+            this.fingerprintBytes = fingerprintBytes;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder tailFiles(boolean tailFiles) {
+            this.tailFiles = tailFiles;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder tailQuietMillis(long tailQuietMillis) {
+            this.tailQuietMillis = tailQuietMillis;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder prefetchBytes(long prefetchBytes) {
+            this.prefetchBytes = prefetchBytes;
+            return this;
+        }
+
+        public MGReliableSpoolFileEventReader.Builder partition(int readerIndex, int readerCount) {
+            this.readerIndex = readerIndex;
+            this.readerCount = readerCount;
+            return this;
+        }
+
         public MGReliableSpoolFileEventReader build() throws IOException {
             return new MGReliableSpoolFileEventReader(spoolDirectory, completedSuffix,
                     ignorePattern, matchPattern, trackerDirPath, annotateFileName, fileNameHeader,
                     annotateBaseName, baseNameHeader, deserializerType,
                     deserializerContext, fileDoneHeader, inputCharset, decodeErrorPolicy,
-                    consumeOrder, deletePolicy);
+                    consumeOrder, deletePolicy, doneFileCompactThreshold, doneFileExpireDays,
+                    doneFileRegistry, positionStore, positionSyncInterval, fileIdentityMode,
+                    fingerprintBytes, tailFiles, tailQuietMillis, prefetchBytes, readerIndex, readerCount);
         }
 
 
@@ -0,0 +1,204 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.serialization.EventDeserializer;
+import org.apache.flume.serialization.LineDeserializer;
+import org.apache.flume.serialization.PositionTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 基于内存映射的按行反序列化
+ * - FileChannel.map 分段映射文件, 直接按字节查找换行符, 不做字符集解码
+ * - 行内容按字节区间拷贝为 event body, 不再经过 String
+ * - 位置记录为文件字节偏移, 与 ResettableFileInputStream 使用的 DurablePositionTracker 兼容
+ * - 与 LineDeserializer 一致: 超过 maxLineLength 字节的行会被截断, 剩余部分作为下一行
+ * 仅适用于 UTF-8/ASCII 等以 '\n' 单字节换行的编码
+ * update: 增量采集时可以保留文件末尾不完整的行, 文件写完后再读取, 避免一行被拆成两个 event
+ * update: 创建 {@link SharedHeaderEvent}, 同一文件的 event 共享文件 header, 不再逐个创建 HashMap
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/9/26 14:30
+ */
+public class MappedLineDeserializer implements EventDeserializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedLineDeserializer.class);
+
+    // 单次映射的最大长度
+    private static final long MAP_SIZE = 256L * 1024 * 1024;
+    private static final byte LF = '\n';
+
+    private final PositionTracker tracker;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int maxLineLength;
+
+    // 当前映射区域
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long regionEnd;
+
+    private long position;
+    private long markPosition;
+    private boolean isOpen;
+    // 文件末尾没有换行符的行暂不读取
+    private boolean holdPartialLine;
+    // 所有 event 共享的 header
+    private Map<String, String> sharedHeaders = Collections.emptyMap();
+
+    public MappedLineDeserializer(File file, PositionTracker tracker, Context context) throws IOException {
+        this.tracker = Preconditions.checkNotNull(tracker);
+        this.maxLineLength = context.getInteger(LineDeserializer.MAXLINE_KEY, LineDeserializer.MAXLINE_DFLT);
+        Preconditions.checkArgument(maxLineLength > 0 && maxLineLength < MAP_SIZE,
+                "Invalid %s: %s", LineDeserializer.MAXLINE_KEY, maxLineLength);
+
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.fileSize = channel.size();
+
+        // 从上次 commit 的位置继续读取
+        this.position = Math.min(tracker.getPosition(), fileSize);
+        this.markPosition = position;
+        this.isOpen = true;
+    }
+
+    @Override
+    public Event readEvent() throws IOException {
+        ensureOpen();
+        byte[] line = readLine();
+        return line == null ? null : new SharedHeaderEvent(line, sharedHeaders);
+    }
+
+    @Override
+    public List<Event> readEvents(int numEvents) throws IOException {
+        ensureOpen();
+        List<Event> events = Lists.newArrayListWithCapacity(numEvents);
+        for (int i = 0; i < numEvents; i++) {
+            byte[] line = readLine();
+            if (line == null) {
+                break;
+            }
+            events.add(new SharedHeaderEvent(line, sharedHeaders));
+        }
+        return events.isEmpty() ? Collections.<Event>emptyList() : events;
+    }
+
+    /**
+     * 设置所有 event 共享的 header, 不可修改
+     */
+    public void setSharedHeaders(Map<String, String> sharedHeaders) {
+        this.sharedHeaders = Preconditions.checkNotNull(sharedHeaders);
+    }
+
+    /**
+     * 设置是否保留文件末尾不完整的行, 用于读取仍在写入的文件
+     */
+    public void setHoldPartialLine(boolean holdPartialLine) {
+        this.holdPartialLine = holdPartialLine;
+    }
+
+    /**
+     * 不再保留末尾不完整的行
+     *
+     * @return 是否还有未读取的内容
+     */
+    public boolean releasePartialLine() {
+        holdPartialLine = false;
+        return position < fileSize;
+    }
+
+    @Override
+    public void mark() throws IOException {
+        ensureOpen();
+        tracker.storePosition(position);
+        markPosition = position;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        ensureOpen();
+        position = markPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isOpen) {
+            isOpen = false;
+            region = null;
+            tracker.close();
+            channel.close();
+            raf.close();
+        }
+    }
+
+    /**
+     * 读取一行, 不包含换行符; 文件末尾返回 null
+     */
+    private byte[] readLine() throws IOException {
+        if (position >= fileSize) {
+            return null;
+        }
+
+        long limit = Math.min(position + maxLineLength, fileSize);
+        mapRegion(position, limit);
+
+        int start = (int) (position - regionStart);
+        int end = (int) (limit - regionStart);
+        int i = start;
+        while (i < end && region.get(i) != LF) {
+            i++;
+        }
+        if (i == end && limit == fileSize && holdPartialLine) {
+            return null;
+        }
+
+        byte[] line = new byte[i - start];
+        region.position(start);
+        region.get(line);
+
+        if (i < end) {
+            // skip '\n'
+            position = regionStart + i + 1;
+        } else {
+            position = regionStart + i;
+            if (limit < fileSize) {
+                logger.warn("Line length exceeds max ({}), truncating line!", maxLineLength);
+            }
+        }
+        return line;
+    }
+
+    /**
+     * 保证 [from, to) 位于当前映射区域内, 否则从 from 开始重新映射
+     */
+    private void mapRegion(long from, long to) throws IOException {
+        if (region != null && from >= regionStart && to <= regionEnd) {
+            return;
+        }
+        regionStart = from;
+        regionEnd = Math.min(from + MAP_SIZE, fileSize);
+        region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+    }
+
+    private void ensureOpen() {
+        if (!isOpen) {
+            throw new IllegalStateException("Serializer has been closed");
+        }
+    }
+}
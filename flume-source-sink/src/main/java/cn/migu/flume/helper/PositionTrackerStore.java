@@ -0,0 +1,324 @@
+package cn.migu.flume.helper;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.flume.serialization.PositionTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 多文件读取位置存储, 替代每个文件一个 DurablePositionTracker 元数据文件
+ * - 所有文件的读取位置记录在同一个追加写日志中, 按文件标识 (目前为文件路径) 区分, 可以同时跟踪多个文件
+ * - 日志记录: OPEN(编号, 文件标识) / POSITION(编号, 位置) / REMOVE(编号), 切换文件只追加一条记录
+ * - 每次更新立即写入系统缓存, 距上次落盘超过 syncIntervalMillis 时 force 落盘, 多次更新合并为一次落盘
+ * - 日志超过存活记录的数倍时重写为快照, 启动时重放日志恢复位置, 末尾不完整的记录忽略
+ * 线程安全, 多个 reader 可以共享同一个实例
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/24 10:00
+ */
+public class PositionTrackerStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PositionTrackerStore.class);
+
+    private static final byte OPEN = 1;
+    private static final byte POSITION = 2;
+    private static final byte REMOVE = 3;
+    private static final String TMP_SUFFIX = ".tmp";
+    // 日志小于该值时不压缩
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
+    // 每个存活文件估算的日志大小, 日志超过 存活文件数 * 该值 时压缩
+    private static final long COMPACT_BYTES_PER_ENTRY = 4 * 1024;
+    private static final int MAX_KEY_LENGTH = 8 * 1024;
+
+    private final File logFile;
+    private final long syncIntervalMillis;
+
+    // 文件标识 -> 位置
+    private final Map<String, Entry> entries = Maps.newHashMap();
+    private int nextId;
+    private FileChannel channel;
+    private long logSize;
+    private long lastSync;
+    private boolean dirty;
+    // 预分配的 POSITION 记录缓冲, 避免每次更新创建对象
+    private final ByteBuffer positionRecord = ByteBuffer.allocate(13);
+
+    /**
+     * @param logFile            日志文件
+     * @param syncIntervalMillis 落盘间隔, 0 表示每次更新都落盘
+     */
+    public PositionTrackerStore(File logFile, long syncIntervalMillis) throws IOException {
+        Preconditions.checkArgument(syncIntervalMillis >= 0, "syncIntervalMillis must not be negative");
+        this.logFile = Preconditions.checkNotNull(logFile);
+        this.syncIntervalMillis = syncIntervalMillis;
+        File tmp = new File(logFile.getPath() + TMP_SUFFIX);
+        if (tmp.exists() && !tmp.delete()) {
+            throw new IOException("Unable to delete " + tmp);
+        }
+        if (logFile.exists()) {
+            replay();
+        }
+        compact();
+    }
+
+    /**
+     * 获取文件的位置跟踪, 不存在时从 0 开始
+     *
+     * @param key 文件标识
+     */
+    public synchronized PositionTracker getTracker(String key) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            checkOpen();
+            entry = new Entry(nextId++, key);
+            entries.put(key, entry);
+            appendOpen(entry);
+            maybeSync();
+        }
+        return new Tracker(entry);
+    }
+
+    /**
+     * 文件读取完成后移除位置记录
+     */
+    public synchronized void remove(String key) throws IOException {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        checkOpen();
+        ByteBuffer record = ByteBuffer.allocate(5);
+        record.put(REMOVE).putInt(entry.id).flip();
+        write(record);
+        maybeSync();
+        maybeCompact();
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * 当前所有文件标识的副本
+     */
+    public synchronized Set<String> keys() {
+        return Sets.newHashSet(entries.keySet());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 将已写入的更新落盘
+     */
+    public synchronized void sync() throws IOException {
+        if (dirty && channel != null) {
+            channel.force(false);
+            dirty = false;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private synchronized void storePosition(Entry entry, long position) throws IOException {
+        checkOpen();
+        // 已移除的文件不再记录
+        if (entries.get(entry.key) != entry) {
+            return;
+        }
+        entry.position = position;
+        positionRecord.clear();
+        positionRecord.put(POSITION).putInt(entry.id).putLong(position).flip();
+        write(positionRecord);
+        maybeSync();
+        maybeCompact();
+    }
+
+    private void appendOpen(Entry entry) throws IOException {
+        byte[] key = entry.key.getBytes(Charsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(9 + key.length);
+        record.put(OPEN).putInt(entry.id).putInt(key.length).put(key).flip();
+        write(record);
+    }
+
+    private void write(ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            logSize += channel.write(record);
+        }
+        dirty = true;
+    }
+
+    private void maybeSync() throws IOException {
+        if (System.currentTimeMillis() - lastSync >= syncIntervalMillis) {
+            sync();
+        }
+    }
+
+    private void maybeCompact() throws IOException {
+        if (logSize > Math.max(MIN_COMPACT_SIZE, entries.size() * COMPACT_BYTES_PER_ENTRY)) {
+            compact();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("Position tracker store is closed: " + logFile);
+        }
+    }
+
+    /**
+     * 重放日志, 末尾不完整的记录 (写入时崩溃) 忽略
+     */
+    private void replay() throws IOException {
+        Map<Integer, Entry> byId = Maps.newHashMap();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            while (true) {
+                byte type = in.readByte();
+                int id = in.readInt();
+                if (type == OPEN) {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_KEY_LENGTH) {
+                        throw new IOException("Corrupted record, key length: " + length);
+                    }
+                    byte[] key = new byte[length];
+                    in.readFully(key);
+                    Entry entry = new Entry(id, new String(key, Charsets.UTF_8));
+                    byId.put(id, entry);
+                    entries.put(entry.key, entry);
+                } else if (type == POSITION) {
+                    long position = in.readLong();
+                    Entry entry = byId.get(id);
+                    if (entry != null) {
+                        entry.position = position;
+                    }
+                } else if (type == REMOVE) {
+                    Entry entry = byId.remove(id);
+                    if (entry != null) {
+                        entries.remove(entry.key);
+                    }
+                } else {
+                    throw new IOException("Corrupted record, type: " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // 日志结束
+        } catch (IOException e) {
+            logger.warn("Position log {} is corrupted, recovered {} files", logFile, entries.size(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 将存活记录重写为新日志, 替换旧日志
+     */
+    @VisibleForTesting
+    synchronized void compact() throws IOException {
+        File tmp = new File(logFile.getPath() + TMP_SUFFIX);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = new RandomAccessFile(tmp, "rw").getChannel();
+        channel.truncate(0L);
+        logSize = 0L;
+        nextId = 0;
+        for (Entry entry : entries.values()) {
+            entry.id = nextId++;
+            appendOpen(entry);
+            positionRecord.clear();
+            positionRecord.put(POSITION).putInt(entry.id).putLong(entry.position).flip();
+            write(positionRecord);
+        }
+        channel.force(true);
+        channel.close();
+        if (!tmp.renameTo(logFile)) {
+            // 部分平台不支持覆盖重命名
+            if (!logFile.delete() || !tmp.renameTo(logFile)) {
+                throw new IOException("Unable to rename " + tmp + " to " + logFile);
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        raf.seek(raf.length());
+        channel = raf.getChannel();
+        dirty = false;
+        lastSync = System.currentTimeMillis();
+        logger.debug("Compacted position log {}, {} files", logFile, entries.size());
+    }
+
+    private static class Entry {
+        private int id;
+        private final String key;
+        private long position;
+
+        Entry(int id, String key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+
+    /**
+     * 单个文件的位置跟踪, 关闭后位置仍保留在存储中, 文件读取完成时由 {@link #remove(String)} 移除
+     */
+    private class Tracker implements PositionTracker {
+
+        private final Entry entry;
+
+        Tracker(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void storePosition(long position) throws IOException {
+            PositionTrackerStore.this.storePosition(entry, position);
+        }
+
+        @Override
+        public long getPosition() {
+            synchronized (PositionTrackerStore.this) {
+                return entry.position;
+            }
+        }
+
+        @Override
+        public String getTarget() {
+            return entry.key;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // 位置保留, 由 store 统一落盘与关闭
+        }
+    }
+}
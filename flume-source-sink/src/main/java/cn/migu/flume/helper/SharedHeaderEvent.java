@@ -0,0 +1,320 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.apache.flume.Event;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 共享 header 的 event, 同一文件的 event 共用一份不可变的文件 header (文件路径、文件名)
+ * - 标注文件 header 不再逐个 event put, 每个 event 不再各自持有一个 HashMap
+ * - 之后 put 的 header (如拦截器添加的主机名) 写入每个 event 自己的 overlay, 按需创建, 读取时优先于共享 header
+ * - 遍历、hashCode、equals 直接读取 overlay 与共享 header, 不复制; 只有删除共享 header 中的 key 时复制为独立的 HashMap
+ * 共享 header 创建后不能再修改
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/28 10:00
+ */
+public class SharedHeaderEvent implements Event {
+
+    private byte[] body;
+    private Headers headers;
+
+    /**
+     * @param body 内容
+     * @param base 共享的 header, 不可修改
+     */
+    public SharedHeaderEvent(byte[] body, Map<String, String> base) {
+        setBody(body);
+        this.headers = new Headers(base);
+    }
+
+    /**
+     * 以共享 header 包装 event, event 已有的 header 放入 overlay
+     */
+    public static SharedHeaderEvent wrap(Event event, Map<String, String> base) {
+        SharedHeaderEvent shared = new SharedHeaderEvent(event.getBody(), base);
+        Map<String, String> own = event.getHeaders();
+        if (own != null && !own.isEmpty()) {
+            shared.headers.putAll(own);
+        }
+        return shared;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public void setHeaders(Map<String, String> headers) {
+        this.headers = new Headers(Collections.<String, String>emptyMap());
+        if (headers != null) {
+            this.headers.putAll(headers);
+        }
+    }
+
+    @Override
+    public byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public void setBody(byte[] body) {
+        this.body = body == null ? new byte[0] : body;
+    }
+
+    @Override
+    public String toString() {
+        return "[Event headers = " + headers + ", body.length = " + body.length + " ]";
+    }
+
+    /**
+     * 共享 header + overlay
+     */
+    private static final class Headers extends AbstractMap<String, String> {
+
+        private Map<String, String> base;
+        // 按需创建
+        private Map<String, String> overlay;
+
+        Headers(Map<String, String> base) {
+            this.base = Preconditions.checkNotNull(base);
+        }
+
+        @Override
+        public String get(Object key) {
+            if (overlay != null) {
+                String value = overlay.get(key);
+                if (value != null || overlay.containsKey(key)) {
+                    return value;
+                }
+            }
+            return base.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return (overlay != null && overlay.containsKey(key)) || base.containsKey(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String previous = get(key);
+            if (overlay == null) {
+                overlay = Maps.newHashMapWithExpectedSize(4);
+            }
+            overlay.put(key, value);
+            return previous;
+        }
+
+        @Override
+        public String remove(Object key) {
+            if (base.containsKey(key)) {
+                materialize();
+            }
+            return overlay == null ? null : overlay.remove(key);
+        }
+
+        @Override
+        public int size() {
+            if (overlay == null) {
+                return base.size();
+            }
+            int size = overlay.size();
+            for (String key : base.keySet()) {
+                if (!overlay.containsKey(key)) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return base.isEmpty() && (overlay == null || overlay.isEmpty());
+        }
+
+        @Override
+        public void clear() {
+            base = Collections.emptyMap();
+            overlay = null;
+        }
+
+        /**
+         * overlay 与共享 header 合并后的视图, 不复制
+         * setValue 写入 overlay, 通过迭代器删除时复制为独立的 HashMap
+         */
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new MergedIterator();
+                }
+
+                @Override
+                public int size() {
+                    return Headers.this.size();
+                }
+            };
+        }
+
+        /**
+         * 与 HashMap 的 hashCode 一致, 不创建 entry
+         */
+        @Override
+        public int hashCode() {
+            int hash = 0;
+            if (overlay != null) {
+                for (Entry<String, String> entry : overlay.entrySet()) {
+                    hash += hash(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Entry<String, String> entry : base.entrySet()) {
+                if (overlay == null || !overlay.containsKey(entry.getKey())) {
+                    hash += hash(entry.getKey(), entry.getValue());
+                }
+            }
+            return hash;
+        }
+
+        private static int hash(String key, String value) {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Map)) {
+                return false;
+            }
+            Map<?, ?> other = (Map<?, ?>) o;
+            if (other.size() != size()) {
+                return false;
+            }
+            if (overlay != null) {
+                for (Entry<String, String> entry : overlay.entrySet()) {
+                    if (!contains(other, entry.getKey(), entry.getValue())) {
+                        return false;
+                    }
+                }
+            }
+            for (Entry<String, String> entry : base.entrySet()) {
+                if ((overlay == null || !overlay.containsKey(entry.getKey()))
+                        && !contains(other, entry.getKey(), entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean contains(Map<?, ?> map, String key, String value) {
+            Object other = map.get(key);
+            return value == null ? other == null && map.containsKey(key) : value.equals(other);
+        }
+
+        /**
+         * 先遍历 overlay, 再遍历未被 overlay 覆盖的共享 header
+         * 通过迭代器删除时先复制, 正在遍历的 overlay 与共享 header 不会被修改
+         */
+        private final class MergedIterator implements Iterator<Entry<String, String>> {
+
+            private final Map<String, String> overlaySnapshot = overlay;
+            private final Iterator<Entry<String, String>> overlayIterator =
+                    overlay == null ? null : overlay.entrySet().iterator();
+            private final Iterator<Entry<String, String>> baseIterator = base.entrySet().iterator();
+            private Entry<String, String> next;
+            private String lastKey;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                }
+                if (overlayIterator != null && overlayIterator.hasNext()) {
+                    next = overlayIterator.next();
+                    return true;
+                }
+                while (baseIterator.hasNext()) {
+                    Entry<String, String> entry = baseIterator.next();
+                    if (overlaySnapshot == null || !overlaySnapshot.containsKey(entry.getKey())) {
+                        next = entry;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<String, String> entry = next;
+                next = null;
+                lastKey = entry.getKey();
+                return new MergedEntry(entry.getKey(), entry.getValue());
+            }
+
+            @Override
+            public void remove() {
+                if (lastKey == null) {
+                    throw new IllegalStateException();
+                }
+                copy();
+                overlay.remove(lastKey);
+                lastKey = null;
+            }
+        }
+
+        /**
+         * setValue 写入 overlay
+         */
+        private final class MergedEntry extends SimpleEntry<String, String> {
+
+            private static final long serialVersionUID = -2916470390232487457L;
+
+            MergedEntry(String key, String value) {
+                super(key, value);
+            }
+
+            @Override
+            public String setValue(String value) {
+                put(getKey(), value);
+                return super.setValue(value);
+            }
+        }
+
+        private void materialize() {
+            if (base.isEmpty() && overlay != null) {
+                return;
+            }
+            copy();
+        }
+
+        /**
+         * 合并为新的 HashMap, 不修改原有的 overlay 与共享 header
+         */
+        private void copy() {
+            Map<String, String> merged = Maps.newHashMap(base);
+            if (overlay != null) {
+                merged.putAll(overlay);
+            }
+            overlay = merged;
+            base = Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 哈希时间轮, 所有 writer 共享一个线程执行定时 roll
+ * - 时间轮分为 wheelSize 个槽, 每 tick 前进一个槽, 到期的任务在时间轮线程中执行
+ * - 超过一圈的任务记录剩余圈数, 添加与取消都是 O(1)
+ * - 新任务先放入无锁队列, 由时间轮线程在下一个 tick 放入对应槽, 取消的任务在到期时跳过
+ * 精度为一个 tick, 任务应尽量短小
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/20 11:00
+ */
+public class TimingWheel implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+
+    // 已执行的 tick 数, 只在时间轮线程中访问
+    private long tick;
+
+    /**
+     * @param name      线程名称
+     * @param tick      每个槽的时长
+     * @param unit      时长单位
+     * @param wheelSize 槽数, 向上取 2 的幂
+     */
+    public TimingWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        Preconditions.checkArgument(tick > 0, "tick must be greater than 0");
+        Preconditions.checkArgument(wheelSize > 0 && wheelSize <= (1 << 30), "Invalid wheelSize: %s", wheelSize);
+        this.tickNanos = unit.toNanos(tick);
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new ThreadFactoryBuilder().setNameFormat(name).setDaemon(true).build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        workLoop();
+                    }
+                });
+        worker.start();
+    }
+
+    /**
+     * 添加定时任务
+     *
+     * @return 可以取消的任务句柄
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Preconditions.checkState(running, "Timing wheel has been stopped");
+        long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+        Timeout timeout = new Timeout(Preconditions.checkNotNull(task), deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void workLoop() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            transferPending();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    /**
+     * 将新任务放入对应槽
+     */
+    private void transferPending() {
+        // 每个 tick 最多处理一定数量, 避免长时间阻塞
+        for (int i = 0; i < 100000; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.state.get() != Timeout.ST_INIT) {
+                continue;
+            }
+            long ticks = timeout.deadline / tickNanos;
+            // 已经过期的任务放入当前槽
+            long target = Math.max(ticks, tick);
+            timeout.remainingRounds = (target - tick) / wheel.length;
+            wheel[(int) (target & mask)].add(timeout);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 定时任务句柄
+     */
+    public static class Timeout {
+
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+        private long remainingRounds;
+
+        // 槽内双向链表
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消任务, 已执行时返回 false
+         */
+        public boolean cancel() {
+            return state.compareAndSet(ST_INIT, ST_CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+    }
+
+    /**
+     * 时间轮的槽, 只在时间轮线程中访问
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.ST_INIT, Timeout.ST_EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (Throwable t) {
+                            logger.warn("Timer task failed", t);
+                        }
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = timeout.next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
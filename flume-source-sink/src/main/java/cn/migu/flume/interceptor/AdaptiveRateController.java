@@ -0,0 +1,256 @@
+package cn.migu.flume.interceptor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import org.apache.flume.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 自适应限速, 根据反馈信号在 [minRate, maxRate] 之间调整令牌桶速率 (AIMD)
+ * - source 写 adaptiveChannel 出现 ChannelException 退避, 或 channel 使用率超过高水位: 速率减半
+ * - channel 使用率低于低水位 (或无法获取): 速率增加 (maxRate - minRate) / 10
+ * - 按时间段配置速率上限, 如夜间放开、白天收紧
+ * channel 使用率通过 flume 注册的 JMX 指标 ChannelFillPercentage 获取
+ * 退避次数按 channel 名称分别计数, 只响应 adaptiveChannel 的退避, 未配置时只参考使用率 (无法获取时按低水位处理)
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/12 10:30
+ */
+public class AdaptiveRateController implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveRateController.class);
+
+    private static final long KB = 1024L;
+
+    private static final String CHANNEL_MBEAN_PREFIX = "org.apache.flume.channel:type=";
+    private static final String FILL_PERCENTAGE_ATTRIBUTE = "ChannelFillPercentage";
+
+    // channel 名称 -> ChannelException 退避次数, 由 source 上报
+    private static final ConcurrentMap<String, AtomicLong> channelFullCounts =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private final TokenBucket bucket;
+    private final long minRate;
+    // 每小时的速率上限 单位：字节/秒
+    private final long[] hourlyMaxRate;
+    private final long step;
+    private final ObjectName channelMBean;
+    private final double highWatermark;
+    private final double lowWatermark;
+    // adaptiveChannel 的退避次数, 未配置时为 null
+    private final AtomicLong channelFullCount;
+
+    private long lastChannelFullCount;
+
+    private AdaptiveRateController(TokenBucket bucket, long minRate, long maxRate,
+                                   long[] hourlyMaxRate, String channelName,
+                                   double highWatermark, double lowWatermark) {
+        Preconditions.checkArgument(minRate > 0 && minRate <= maxRate,
+                "Invalid rate range: [%s, %s]", minRate, maxRate);
+        Preconditions.checkArgument(lowWatermark <= highWatermark,
+                "Low watermark must not be greater than high watermark");
+        this.bucket = bucket;
+        this.minRate = minRate;
+        this.hourlyMaxRate = hourlyMaxRate;
+        this.step = Math.max(1L, (maxRate - minRate) / 10);
+        this.channelMBean = toObjectName(channelName);
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.channelFullCount = channelName == null || channelName.isEmpty()
+                ? null : channelFullCount(channelName);
+        this.lastChannelFullCount = channelFullCount == null ? 0L : channelFullCount.get();
+    }
+
+    private static AtomicLong channelFullCount(String channelName) {
+        AtomicLong count = channelFullCounts.get(channelName);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = channelFullCounts.putIfAbsent(channelName, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * source 写 channel 失败需要退避时调用, 只影响以该 channel 为 adaptiveChannel 的限速
+     *
+     * @param channelName 写入失败的 channel 名称
+     */
+    public static void reportChannelFull(String channelName) {
+        channelFullCount(channelName).incrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        try {
+            adjust(backoffs(), channelFillPercentage(), Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
+        } catch (Throwable t) {
+            logger.warn("Adjust limit rate failed", t);
+        }
+    }
+
+    /**
+     * 上次调用以来 adaptiveChannel 的退避次数
+     */
+    @VisibleForTesting
+    long backoffs() {
+        if (channelFullCount == null) {
+            return 0L;
+        }
+        long count = channelFullCount.get();
+        long backoffs = count - lastChannelFullCount;
+        lastChannelFullCount = count;
+        return backoffs;
+    }
+
+    /**
+     * @param backoffs    上次调整以来 ChannelException 退避次数
+     * @param fillPercent channel 使用率, 小于 0 表示未知
+     * @param hour        当前小时
+     * @return 调整后的速率 单位：字节/秒
+     */
+    @VisibleForTesting
+    long adjust(long backoffs, double fillPercent, int hour) {
+        long current = bucket.getRate();
+        long rate = current;
+        if (backoffs > 0 || fillPercent >= highWatermark) {
+            rate = rate / 2;
+        } else if (fillPercent < lowWatermark) {
+            rate = rate + step;
+        }
+        // 时间段上限优先于 minRate
+        rate = Math.min(hourlyMaxRate[hour], Math.max(minRate, rate));
+        if (rate != current) {
+            bucket.setRate(rate);
+            logger.info("Adjust limit rate from {}KB/s to {}KB/s, backoffs: {}, channel fill: {}%",
+                    current / KB, rate / KB, backoffs, fillPercent);
+        }
+        return rate;
+    }
+
+    private double channelFillPercentage() {
+        if (channelMBean == null) {
+            return -1D;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            return ((Number) server.getAttribute(channelMBean, FILL_PERCENTAGE_ATTRIBUTE)).doubleValue();
+        } catch (Exception e) {
+            logger.debug("Cannot get fill percentage of " + channelMBean, e);
+            return -1D;
+        }
+    }
+
+    private static ObjectName toObjectName(String channelName) {
+        if (channelName == null || channelName.isEmpty()) {
+            return null;
+        }
+        try {
+            return new ObjectName(CHANNEL_MBEAN_PREFIX + channelName);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid channel name: " + channelName, e);
+        }
+    }
+
+    /**
+     * 解析时间段速率上限, 格式: 起始小时-结束小时:速率(KB/s), 多个时间段逗号分隔
+     * 例如 0-8:20480,8-20:2048 , 未配置的小时使用 maxRate
+     *
+     * @return 每小时的速率上限 单位：字节/秒
+     */
+    @VisibleForTesting
+    static long[] parseSchedule(String schedule, long maxRate) {
+        long[] hourly = new long[24];
+        Arrays.fill(hourly, maxRate);
+        if (schedule == null || schedule.trim().isEmpty()) {
+            return hourly;
+        }
+        for (String range : schedule.split(",")) {
+            String[] parts = range.trim().split("[-:]");
+            Preconditions.checkArgument(parts.length == 3, "Invalid rate schedule: %s", range);
+            int start = Integer.parseInt(parts[0].trim());
+            int end = Integer.parseInt(parts[1].trim());
+            long rate = Long.parseLong(parts[2].trim()) * KB;
+            Preconditions.checkArgument(start >= 0 && start < end && end <= 24,
+                    "Invalid hour range: %s", range);
+            Preconditions.checkArgument(rate > 0, "Invalid rate: %s", range);
+            for (int hour = start; hour < end; hour++) {
+                hourly[hour] = rate;
+            }
+        }
+        return hourly;
+    }
+
+    public static class Builder {
+
+        private long minRate;
+        private long maxRate;
+        private String schedule;
+        private String channelName;
+        private double highWatermark;
+        private double lowWatermark;
+        private long adjustInterval;
+
+        /**
+         * @param limitRate 初始速率 单位：KB/s, 作为 minRate/maxRate 的默认值参考
+         */
+        public Builder configure(Context context, long limitRate) {
+            this.minRate = context.getLong(Constants.MIN_RATE, Math.max(1L, limitRate / 10));
+            this.maxRate = context.getLong(Constants.MAX_RATE, limitRate);
+            this.schedule = context.getString(Constants.RATE_SCHEDULE);
+            this.channelName = context.getString(Constants.ADAPTIVE_CHANNEL);
+            this.highWatermark = Double.parseDouble(context.getString(Constants.FILL_HIGH_WATERMARK,
+                    String.valueOf(Constants.DEFAULT_FILL_HIGH_WATERMARK)));
+            this.lowWatermark = Double.parseDouble(context.getString(Constants.FILL_LOW_WATERMARK,
+                    String.valueOf(Constants.DEFAULT_FILL_LOW_WATERMARK)));
+            this.adjustInterval = context.getLong(Constants.ADJUST_INTERVAL,
+                    Constants.DEFAULT_ADJUST_INTERVAL);
+            Preconditions.checkArgument(adjustInterval > 0, "%s must be greater than 0",
+                    Constants.ADJUST_INTERVAL);
+            logger.info("adaptive minRate: {}KB/s, maxRate: {}KB/s, schedule: {}, channel: {}",
+                    minRate, maxRate, schedule, channelName);
+            return this;
+        }
+
+        /**
+         * 调整间隔 单位：秒
+         */
+        public long getAdjustInterval() {
+            return adjustInterval;
+        }
+
+        public AdaptiveRateController build(TokenBucket bucket) {
+            return new AdaptiveRateController(bucket, minRate * KB, maxRate * KB,
+                    parseSchedule(schedule, maxRate * KB), channelName, highWatermark, lowWatermark);
+        }
+    }
+
+    public static class Constants {
+        public static String ADAPTIVE = "adaptive";
+        public static String MIN_RATE = "minRate";
+        public static String MAX_RATE = "maxRate";
+        public static String RATE_SCHEDULE = "rateSchedule";
+        public static String ADAPTIVE_CHANNEL = "adaptiveChannel";
+        public static String FILL_HIGH_WATERMARK = "fillHighWatermark";
+        public static double DEFAULT_FILL_HIGH_WATERMARK = 80D;
+        public static String FILL_LOW_WATERMARK = "fillLowWatermark";
+        public static double DEFAULT_FILL_LOW_WATERMARK = 50D;
+        public static String ADJUST_INTERVAL = "adjustInterval";
+        public static long DEFAULT_ADJUST_INTERVAL = 5L;
+    }
+}
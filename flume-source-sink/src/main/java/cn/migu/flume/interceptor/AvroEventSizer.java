@@ -0,0 +1,101 @@
+package cn.migu.flume.interceptor;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.flume.Event;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 计算 event 经 avro sink 发送时的实际字节数
+ * AvroFlumeEvent { map<string,string> headers; bytes body; } 的二进制编码:
+ * - map: 条目数(zigzag varint) + 每个条目 key/value(长度 varint + UTF-8 字节) + 结束标记 0
+ * - bytes: 长度 varint + 内容
+ * 同一文件的 event header 基本相同, header 大小按 header 内容缓存
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/10 14:20
+ */
+public class AvroEventSizer {
+
+    // 缓存的 header 种类上限, 超过后清空重新缓存
+    private static final int MAX_CACHED_HEADERS = 1024;
+
+    private final ConcurrentHashMap<Map<String, String>, Long> headerSizeCache =
+            new ConcurrentHashMap<Map<String, String>, Long>();
+
+    /**
+     * event 编码后的字节数
+     */
+    public long sizeOf(Event event) {
+        int bodyLength = event.getBody().length;
+        return headerSize(event.getHeaders()) + varLongSize(bodyLength) + bodyLength;
+    }
+
+    /**
+     * header 编码后的字节数, 命中缓存时只需计算 map 的 hashCode (String hash 已缓存)
+     */
+    long headerSize(Map<String, String> headers) {
+        Long size = headerSizeCache.get(headers);
+        if (size == null) {
+            size = computeHeaderSize(headers);
+            if (headerSizeCache.size() >= MAX_CACHED_HEADERS) {
+                headerSizeCache.clear();
+            }
+            // header 可能被后续修改, 缓存副本
+            headerSizeCache.put(ImmutableMap.copyOf(headers), size);
+        }
+        return size;
+    }
+
+    static long computeHeaderSize(Map<String, String> headers) {
+        long size = 1L; // end of map
+        if (!headers.isEmpty()) {
+            size += varLongSize(headers.size());
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                size += stringSize(entry.getKey()) + stringSize(entry.getValue());
+            }
+        }
+        return size;
+    }
+
+    static long stringSize(String s) {
+        int length = utf8Length(s);
+        return varLongSize(length) + length;
+    }
+
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                // surrogate pair 编码为 4 字节, low surrogate 不再计数
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * zigzag varint 编码后的字节数
+     */
+    static int varLongSize(long n) {
+        long zigzag = (n << 1) ^ (n >> 63);
+        int size = 1;
+        while ((zigzag & ~0x7FL) != 0) {
+            zigzag >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,305 @@
+package cn.migu.flume.interceptor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 进程内共享的带宽预算
+ * - 同名预算在 JVM 内只有一个, 所有限速拦截器从同一个令牌桶申请令牌, 总速率不超过预算
+ * - 每个拦截器按权重分配份额, 只在活跃 (最近有发送) 的成员之间分配, 空闲成员的份额让给其他成员
+ * - 可选通过内存映射文件与本机其他 flume 进程协调: 每个进程写入自己的活跃权重与心跳,
+ *   按 本进程权重 / 全部进程权重 计算本进程可用的速率
+ * 份额每秒在申请令牌时顺带重新计算, 不需要额外线程
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/13 15:10
+ */
+public class SharedBandwidthBudget {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedBandwidthBudget.class);
+
+    private static final Map<String, SharedBandwidthBudget> budgets = Maps.newHashMap();
+
+    private static final long REBALANCE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    // 超过该时间未发送的成员不参与分配
+    private static final long ACTIVE_WINDOW = TimeUnit.SECONDS.toNanos(3);
+
+    private final String name;
+    private final long totalRate;
+    private final TokenBucket pool;
+    private final List<Member> members = new CopyOnWriteArrayList<Member>();
+    private final CoordinationFile coordinationFile;
+
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+    private volatile long nextRebalance;
+
+    @VisibleForTesting
+    SharedBandwidthBudget(String name, long totalRate, File file) throws IOException {
+        Preconditions.checkArgument(totalRate > 0, "totalRate must be greater than 0");
+        this.name = name;
+        this.totalRate = totalRate;
+        // 允许 100ms 的突发
+        this.pool = new TokenBucket(totalRate, totalRate / 10);
+        this.coordinationFile = file == null ? null : new CoordinationFile(file);
+    }
+
+    /**
+     * 获取同名预算, 不存在时创建
+     *
+     * @param totalRate 总速率 单位：字节/秒, 以第一次创建时为准
+     * @param file      进程间协调文件, 为 null 时只在进程内共享
+     */
+    public static synchronized SharedBandwidthBudget get(String name, long totalRate, File file)
+            throws IOException {
+        SharedBandwidthBudget budget = budgets.get(name);
+        if (budget == null) {
+            budget = new SharedBandwidthBudget(name, totalRate, file);
+            budgets.put(name, budget);
+            logger.info("Create shared bandwidth budget {}: {}B/s, coordination file: {}",
+                    name, totalRate, file);
+        } else if (budget.totalRate != totalRate) {
+            logger.warn("Shared bandwidth budget {} already exists with rate {}B/s, ignore {}B/s",
+                    name, budget.totalRate, totalRate);
+        }
+        return budget;
+    }
+
+    /**
+     * 加入预算
+     *
+     * @param weight 权重
+     */
+    public Member join(long weight) {
+        Preconditions.checkArgument(weight > 0, "weight must be greater than 0");
+        Member member = new Member(weight);
+        members.add(member);
+        rebalance(System.nanoTime());
+        return member;
+    }
+
+    private void leave(Member member) {
+        members.remove(member);
+        rebalance(System.nanoTime());
+        synchronized (SharedBandwidthBudget.class) {
+            if (members.isEmpty()) {
+                if (budgets.get(name) == this) {
+                    budgets.remove(name);
+                }
+                if (coordinationFile != null) {
+                    coordinationFile.close();
+                }
+            }
+        }
+    }
+
+    private void maybeRebalance(long now) {
+        if (now - nextRebalance >= 0 && rebalanceLock.tryLock()) {
+            try {
+                rebalance(now);
+            } finally {
+                rebalanceLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 按活跃成员权重重新分配速率
+     */
+    @VisibleForTesting
+    void rebalance(long now) {
+        rebalanceLock.lock();
+        try {
+            nextRebalance = now + REBALANCE_INTERVAL;
+            long activeWeight = 0L;
+            for (Member member : members) {
+                if (member.isActive(now)) {
+                    activeWeight += member.weight;
+                }
+            }
+
+            long processRate = totalRate;
+            if (coordinationFile != null) {
+                try {
+                    long globalWeight = coordinationFile.update(activeWeight);
+                    if (globalWeight > activeWeight) {
+                        processRate = Math.max(1L, totalRate * activeWeight / globalWeight);
+                    }
+                } catch (IOException | OverlappingFileLockException e) {
+                    // 同一进程内多个预算使用同一文件时可能出现锁冲突
+                    logger.warn("Update coordination file failed, use full budget", e);
+                }
+            }
+            pool.setRate(processRate);
+
+            for (Member member : members) {
+                // 不活跃的成员开始发送时按自己权重计入
+                long weight = member.isActive(now) ? activeWeight : activeWeight + member.weight;
+                member.bucket.setRate(Math.max(1L, processRate * member.weight / weight));
+            }
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    long getProcessRate() {
+        return pool.getRate();
+    }
+
+    /**
+     * 预算成员, 对应一个限速拦截器
+     */
+    public class Member implements Closeable {
+
+        private final long weight;
+        // 按权重分得的份额
+        private final TokenBucket bucket;
+        private volatile long lastAcquire;
+
+        private Member(long weight) {
+            this.weight = weight;
+            this.bucket = new TokenBucket(totalRate, 0L);
+            this.lastAcquire = System.nanoTime() - ACTIVE_WINDOW;
+        }
+
+        /**
+         * 先按份额申请, 再从进程共享令牌桶申请
+         *
+         * @return 等待的纳秒数
+         */
+        public long acquire(long bytes) {
+            long now = System.nanoTime();
+            boolean wasActive = isActive(now);
+            lastAcquire = now;
+            if (!wasActive) {
+                rebalance(now);
+            } else {
+                maybeRebalance(now);
+            }
+            return bucket.acquire(bytes) + pool.acquire(bytes);
+        }
+
+        private boolean isActive(long now) {
+            return now - lastAcquire < ACTIVE_WINDOW;
+        }
+
+        @VisibleForTesting
+        long getRate() {
+            return bucket.getRate();
+        }
+
+        @Override
+        public void close() {
+            leave(this);
+        }
+    }
+
+    /**
+     * 进程间协调文件, 固定 64 个槽位, 每个槽位: 进程标识、活跃权重、心跳时间 (毫秒)
+     * 更新时对文件加锁, 每秒一次, 开销可以忽略
+     */
+    private static class CoordinationFile {
+
+        private static final int SLOTS = 64;
+        private static final int SLOT_SIZE = 24;
+        private static final long HEARTBEAT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final long ownerId;
+        private int slot = -1;
+
+        CoordinationFile(File file) throws IOException {
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOTS * SLOT_SIZE);
+            long id = new Random().nextLong();
+            this.ownerId = id == 0L ? 1L : id;
+        }
+
+        /**
+         * 写入本进程权重, 返回所有存活进程的权重之和
+         */
+        synchronized long update(long weight) throws IOException {
+            long now = System.currentTimeMillis();
+            FileLock lock = channel.lock();
+            try {
+                if (slot < 0 || buffer.getLong(slot * SLOT_SIZE) != ownerId) {
+                    slot = claimSlot(now);
+                }
+                if (slot >= 0) {
+                    int offset = slot * SLOT_SIZE;
+                    buffer.putLong(offset, ownerId);
+                    buffer.putLong(offset + 8, weight);
+                    buffer.putLong(offset + 16, now);
+                }
+
+                long total = slot >= 0 ? 0L : weight;
+                for (int i = 0; i < SLOTS; i++) {
+                    int offset = i * SLOT_SIZE;
+                    if (buffer.getLong(offset) != 0L
+                            && now - buffer.getLong(offset + 16) < HEARTBEAT_TIMEOUT) {
+                        total += buffer.getLong(offset + 8);
+                    }
+                }
+                return total;
+            } finally {
+                lock.release();
+            }
+        }
+
+        /**
+         * 选择空闲或心跳超时的槽位, 全部占满时返回 -1 (只统计不登记)
+         */
+        private int claimSlot(long now) {
+            for (int i = 0; i < SLOTS; i++) {
+                int offset = i * SLOT_SIZE;
+                if (buffer.getLong(offset) == 0L
+                        || now - buffer.getLong(offset + 16) >= HEARTBEAT_TIMEOUT) {
+                    return i;
+                }
+            }
+            logger.warn("No free slot in coordination file");
+            return -1;
+        }
+
+        synchronized void close() {
+            try {
+                if (slot >= 0 && buffer.getLong(slot * SLOT_SIZE) == ownerId) {
+                    FileLock lock = channel.lock();
+                    try {
+                        buffer.putLong(slot * SLOT_SIZE, 0L);
+                    } finally {
+                        lock.release();
+                    }
+                }
+                channel.close();
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("Close coordination file failed", e);
+            }
+        }
+    }
+}
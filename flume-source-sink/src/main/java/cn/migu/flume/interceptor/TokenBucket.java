@@ -0,0 +1,103 @@
+package cn.migu.flume.interceptor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 令牌桶限速 (GCRA 虚拟调度实现)
+ * - 只维护一个原子变量: 理论到达时间 (theoretical arrival time, 纳秒)
+ * - 每次申请先 CAS 预占令牌, 再休眠到令牌可用, 无锁且多线程安全
+ * - burst 为允许的突发字节数, 空闲后最多可一次性发送 burst 字节
+ * - 精度为纳秒, 不再按秒累计后集中休眠
+ * @Author : ChenYao
+ * @Version : v1.0
+ * @Date : 2016/10/8 09:40
+ */
+public class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // 速率 单位：字节/秒
+    private volatile long rate;
+    // 突发字节数
+    private volatile long burst;
+
+    // 理论到达时间: 已预占的令牌全部可用的时间点
+    private final AtomicLong tat;
+
+    public TokenBucket(long rate, long burst) {
+        Preconditions.checkArgument(rate > 0, "rate must be greater than 0");
+        Preconditions.checkArgument(burst >= 0, "burst must not be negative");
+        this.rate = rate;
+        this.burst = burst;
+        this.tat = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 申请令牌, 不足时阻塞等待
+     *
+     * @param bytes 字节数
+     * @return 等待的纳秒数
+     */
+    public long acquire(long bytes) {
+        long waitNanos = reserve(bytes, System.nanoTime());
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return waitNanos;
+    }
+
+    /**
+     * 预占令牌, 返回需要等待的纳秒数
+     */
+    long reserve(long bytes, long now) {
+        if (bytes <= 0) {
+            return 0L;
+        }
+        double nanosPerByte = NANOS_PER_SECOND / rate;
+        long cost = (long) (bytes * nanosPerByte);
+        long tolerance = (long) (burst * nanosPerByte);
+
+        while (true) {
+            long current = tat.get();
+            // 空闲期间最多积累 burst 字节的令牌
+            long base = Math.max(current, now - tolerance);
+            long next = base + cost;
+            if (tat.compareAndSet(current, next)) {
+                return Math.max(0L, base - now);
+            }
+        }
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * 调整速率, 已预占的令牌不受影响
+     *
+     * @param rate 字节/秒
+     */
+    public void setRate(long rate) {
+        Preconditions.checkArgument(rate > 0, "rate must be greater than 0");
+        this.rate = rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    public void setBurst(long burst) {
+        Preconditions.checkArgument(burst >= 0, "burst must not be negative");
+        this.burst = burst;
+    }
+}
@@ -1,12 +1,20 @@
 package cn.migu.flume.interceptor;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
 import org.apache.flume.interceptor.Interceptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 
@@ -14,6 +22,9 @@ import java.util.List;
  * All rights Reserved, Designed by Migu.cn
  *
  * @Description: flume event 拦截器 进行流量限速
+ * update: 改为令牌桶限速, 支持突发流量, 按批次申请令牌
+ * update: 支持自适应限速, 见 AdaptiveRateController
+ * update: 支持多个拦截器共享带宽预算, 见 SharedBandwidthBudget
  * @Author : ChenYao
  * @Version : v1.0
  * @Date : 2016/6/29 11:25
@@ -23,102 +34,199 @@ public class VLimitInterceptor implements Interceptor {
     private static final Logger logger = LoggerFactory.getLogger(VLimitInterceptor.class);
 
     private static final long KB = 1024L;
-    private long lastEventSentTick = System.nanoTime();
-    private long pastSentLength = 0L;
 
-    private long threshold;
+    // 令牌桶, 多线程共享时同样安全
+    private final TokenBucket bucket;
 
-    // 1s = 10[9] nano seconds
-    private static final long timeCostPerCheck = 1000000000L;
-    private long headerSize = 0L;
+    private final long headerSize;
 
-    private int num = 0;
+    // AVRO 计量模式下计算 event 实际发送字节数, FIXED 模式为 null
+    private final AvroEventSizer eventSizer;
+
+    // 自适应限速, 未开启时为 null
+    private final AdaptiveRateController.Builder adaptiveBuilder;
+    private ScheduledExecutorService adaptiveExecutor;
+
+    // 共享带宽预算, 未开启时为 null
+    private final SharedBandwidthBudget sharedBudget;
+    private final long sharedBudgetWeight;
+    private SharedBandwidthBudget.Member budgetMember;
 
     public VLimitInterceptor(long limitRate, long headerSize) {
-        this.threshold = (limitRate * KB);
+        this(limitRate, limitRate, headerSize, AccountingMode.FIXED);
+    }
+
+    public VLimitInterceptor(long limitRate, long burstSize, long headerSize,
+                             AccountingMode accountingMode) {
+        this(limitRate, burstSize, headerSize, accountingMode, null, null, 0L);
+    }
+
+    /**
+     * @param limitRate      限速 单位：KB/s
+     * @param burstSize      允许的突发流量 单位：KB
+     * @param headerSize     FIXED 模式下每个 event 头部大小 单位：字节
+     * @param accountingMode 流量计量方式
+     * @param adaptive       自适应限速配置, 为 null 时固定速率
+     * @param sharedBudget   共享带宽预算, 为 null 时只按本拦截器速率限速
+     * @param sharedBudgetWeight 在共享预算中的权重
+     */
+    public VLimitInterceptor(long limitRate, long burstSize, long headerSize,
+                             AccountingMode accountingMode,
+                             AdaptiveRateController.Builder adaptive,
+                             SharedBandwidthBudget sharedBudget, long sharedBudgetWeight) {
+        this.bucket = new TokenBucket(limitRate * KB, burstSize * KB);
         this.headerSize = headerSize;
-        logger.info("threshold size: {}KB", limitRate);
+        this.eventSizer = accountingMode == AccountingMode.AVRO ? new AvroEventSizer() : null;
+        this.adaptiveBuilder = adaptive;
+        this.sharedBudget = sharedBudget;
+        this.sharedBudgetWeight = sharedBudgetWeight;
+        logger.info("threshold size: {}KB, burst size: {}KB, accounting: {}",
+                limitRate, burstSize, accountingMode);
     }
 
     @Override
     public void initialize() {
+        if (adaptiveBuilder != null) {
+            AdaptiveRateController controller = adaptiveBuilder.build(bucket);
+            adaptiveExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("vlimit-adaptive-%d")
+                            .setDaemon(true).build());
+            adaptiveExecutor.scheduleWithFixedDelay(controller, 0L,
+                    adaptiveBuilder.getAdjustInterval(), TimeUnit.SECONDS);
+        }
+        if (sharedBudget != null) {
+            budgetMember = sharedBudget.join(sharedBudgetWeight);
+        }
     }
 
     @Override
     public Event intercept(Event event) {
-        this.num += 1;
-
-        if (this.pastSentLength > this.threshold) {
-            long nowTick = System.nanoTime();
-            long multiple = this.pastSentLength / this.threshold;
-
-            // 累计到 threshold size 的耗时
-            long duration = nowTick - this.lastEventSentTick;
-
-            // 上次传输完 threshold 还剩的时间 (上次传输速度很快)
-            // 剩下的时间
-            long restTime = multiple * timeCostPerCheck - duration;
-
-            // 提前传完, 剩下的时间需要休眠暂停
-            if (restTime > 0L) {
-                try {
-                    logger.info("Limit source send rate," +
-                            " pastSentLength:{}, sleepTime:{} ms, num event:{}\n",
-                            pastSentLength, restTime / 1000000, num);
-
-                    Thread.sleep(restTime / 1000000L, (int) (restTime % 1000000L));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            this.num = 0;
-            this.pastSentLength = 0L;
-            this.lastEventSentTick = (nowTick + (restTime > 0L ? restTime : 0L));
-        }
-
-        this.pastSentLength += headerSize + event.getBody().length;
+        acquire(sizeOf(event), 1);
         return event;
     }
 
+    /**
+     * 按批次一次性申请令牌
+     */
     @Override
     public List<Event> intercept(List<Event> events) {
+        long length = 0L;
         for (Event event : events) {
-            intercept(event);
+            length += sizeOf(event);
         }
+        acquire(length, events.size());
         return events;
     }
 
+    private long sizeOf(Event event) {
+        if (eventSizer != null) {
+            return eventSizer.sizeOf(event);
+        }
+        return headerSize + event.getBody().length;
+    }
+
+    private void acquire(long length, int num) {
+        long waitNanos = bucket.acquire(length);
+        SharedBandwidthBudget.Member member = budgetMember;
+        if (member != null) {
+            waitNanos += member.acquire(length);
+        }
+        if (waitNanos > 0 && logger.isDebugEnabled()) {
+            logger.debug("Limit source send rate, length:{}, sleepTime:{} ms, num event:{}",
+                    length, TimeUnit.NANOSECONDS.toMillis(waitNanos), num);
+        }
+    }
+
 
     @Override
     public void close() {
+        if (adaptiveExecutor != null) {
+            adaptiveExecutor.shutdownNow();
+            adaptiveExecutor = null;
+        }
+        if (budgetMember != null) {
+            budgetMember.close();
+            budgetMember = null;
+        }
     }
 
 
     public static class Builder implements Interceptor.Builder {
 
         private long limitRate;
+        private long burstSize;
         private long headerSize;
+        private AccountingMode accountingMode;
+        private AdaptiveRateController.Builder adaptive;
+        private String sharedBudget;
+        private long sharedBudgetRate;
+        private long sharedBudgetWeight;
+        private String sharedBudgetFile;
 
         @Override
         public Interceptor build() {
-            return new VLimitInterceptor(this.limitRate, this.headerSize);
+            SharedBandwidthBudget budget = null;
+            if (sharedBudget != null) {
+                try {
+                    budget = SharedBandwidthBudget.get(sharedBudget, sharedBudgetRate * KB,
+                            sharedBudgetFile == null ? null : new File(sharedBudgetFile));
+                } catch (IOException e) {
+                    throw new FlumeException("Cannot open shared budget file: " + sharedBudgetFile, e);
+                }
+            }
+            return new VLimitInterceptor(this.limitRate, this.burstSize, this.headerSize,
+                    this.accountingMode, this.adaptive, budget, this.sharedBudgetWeight);
         }
 
         @Override
         public void configure(Context context) {
             this.limitRate = context.getLong(Constants.LIMIT_RATE, Constants.DEFAULT_RATE);
+            // 默认允许一秒的突发流量
+            this.burstSize = context.getLong(Constants.BURST_SIZE, limitRate);
             this.headerSize = context.getLong(Constants.HEADER_SIZE, Constants.DEFAULT_SIZE);
+            this.accountingMode = AccountingMode.valueOf(context.getString(Constants.ACCOUNTING_MODE,
+                    Constants.DEFAULT_ACCOUNTING_MODE.toString()).toUpperCase(Locale.ENGLISH));
             logger.info("limitRate: " + limitRate);
+            logger.info("burstSize: " + burstSize);
             logger.info("headerSize: " + headerSize);
+            logger.info("accountingMode: " + accountingMode);
+            if (context.getBoolean(AdaptiveRateController.Constants.ADAPTIVE, false)) {
+                this.adaptive = new AdaptiveRateController.Builder().configure(context, limitRate);
+            }
+            this.sharedBudget = context.getString(Constants.SHARED_BUDGET);
+            if (sharedBudget != null) {
+                this.sharedBudgetRate = context.getLong(Constants.SHARED_BUDGET_RATE, limitRate);
+                this.sharedBudgetWeight = context.getLong(Constants.SHARED_BUDGET_WEIGHT,
+                        Constants.DEFAULT_SHARED_BUDGET_WEIGHT);
+                this.sharedBudgetFile = context.getString(Constants.SHARED_BUDGET_FILE);
+                logger.info("sharedBudget: {}, rate: {}KB/s, weight: {}, file: {}",
+                        sharedBudget, sharedBudgetRate, sharedBudgetWeight, sharedBudgetFile);
+            }
         }
     }
 
+    /**
+     * 流量计量方式
+     * FIXED: 每个 event 按固定 headerSize + body 长度计算
+     * AVRO: 按 avro 编码后的实际大小计算 (header 真实长度)
+     */
+    public enum AccountingMode {
+        FIXED, AVRO
+    }
+
     public static class Constants {
         public static long DEFAULT_RATE = 500L;
         public static long DEFAULT_SIZE = 16L;
         public static String HEADER_SIZE = "headerSize";
         public static String LIMIT_RATE = "limitRate";
+        public static String BURST_SIZE = "burstSize";
+        public static String ACCOUNTING_MODE = "accountingMode";
+        public static AccountingMode DEFAULT_ACCOUNTING_MODE = AccountingMode.FIXED;
+        public static String SHARED_BUDGET = "sharedBudget";
+        public static String SHARED_BUDGET_RATE = "sharedBudgetRate";
+        public static String SHARED_BUDGET_WEIGHT = "sharedBudgetWeight";
+        public static long DEFAULT_SHARED_BUDGET_WEIGHT = 1L;
+        public static String SHARED_BUDGET_FILE = "sharedBudgetFile";
     }
 
 }
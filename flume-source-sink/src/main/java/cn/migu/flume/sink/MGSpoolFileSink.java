@@ -1,11 +1,20 @@
 package cn.migu.flume.sink;
 
+import cn.migu.flume.helper.AsyncWriterPipeline;
+import cn.migu.flume.helper.BlockDeserializer;
 import cn.migu.flume.helper.BucketFileWriter;
+import cn.migu.flume.helper.CompressionCodec;
+import cn.migu.flume.helper.DailyArchiver;
 import cn.migu.flume.helper.FileWriterLinkedHashMap;
+import cn.migu.flume.helper.GroupCommitter;
+import cn.migu.flume.helper.TimingWheel;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import it.sauronsoftware.cron4j.Scheduler;
+import it.sauronsoftware.cron4j.SchedulingPattern;
 import org.apache.flume.*;
 import org.apache.flume.conf.Configurable;
 import org.apache.flume.instrumentation.SinkCounter;
@@ -16,10 +25,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -34,6 +46,18 @@ import java.util.concurrent.ScheduledExecutorService;
  * @update : v1.1
  * 1.对于文件传输过程中发生更新的文件 重命名后缀为 .uncompleted
  * 2.文件写数据改为 append 模式
+ * 3.支持按块传输, header 带 blockOffset 的 event 按偏移量写入
+ * 4.支持流水线模式, channel 读取与文件写入在不同线程并行
+ * 5.支持按 主机名/文件名 分片, 多个写线程并行写入
+ * 6.支持提交事务前 fsync/fdatasync 落盘, 多个文件与批次合并为一次组提交
+ * 7.支持输出压缩文件
+ * 8.支持按 cron 每日归档, 见 DailyArchiver
+ * 9.writer 缓存线程安全, 淘汰的文件在后台关闭
+ * 10.定时 roll 改用单线程时间轮, 不再按 maxOpenFiles 创建线程
+ * 11.支持按写入字节数、event 数滚动出 文件名.part-序号, 下游可以增量处理
+ * 12.写入路径按 (主机名, 文件名) 缓存, 批次内复用 writer, 减少每个 event 的对象创建与 header 查询
+ * 13.文件结束标记不再结束批次, 一个事务可以包含多个文件的结束标记, 完成的文件在事务提交后重命名
+ * 14.收到结束标记的文件不再单独落盘, 与本批次其他文件一起组提交后关闭
  */
 public class MGSpoolFileSink extends AbstractSink implements Configurable {
 
@@ -44,12 +68,63 @@ public class MGSpoolFileSink extends AbstractSink implements Configurable {
     // 序列化类型
     private String serializerType;
     private Context serializerContext;
-    // writers
-    private FileWriterLinkedHashMap sfWriters;
-    // 调度器
-    private ScheduledExecutorService timedRollerPool;
+    // writers, 同步模式使用
+    private EventWriter eventWriter;
+    // 所有 writer 缓存, 每个分片一个
+    private List<FileWriterLinkedHashMap> writerCaches = Lists.newArrayList();
+    // writer 缓存统计输出间隔 单位：分钟
+    private static final long WRITER_STATS_INTERVAL = 5L;
+    // 流水线模式下的异步写入, 每个分片一个写线程, 未开启时为 null
+    private AsyncWriterPipeline[] pipelines;
+    // 每个分片的 writer, 与 pipelines 一一对应
+    private EventWriter[] shardWriters;
+    private boolean pipelined;
+    // 写分片数, 按 主机名/文件名 hash 划分
+    private int writerShards;
+    private static final String WRITER_SHARDS_KEY = "file.writerShards";
+
+    // 落盘方式, 非 NONE 时提交事务前通过组提交 force 到磁盘
+    private GroupCommitter.Durability durability;
+    private long groupCommitMillis;
+    private long groupCommitBytes;
+    private GroupCommitter groupCommitter;
+    private static final String DURABILITY_KEY = "file.durability";
+    private static final String GROUP_COMMIT_MILLIS_KEY = "file.groupCommitMillis";
+    private static final long GROUP_COMMIT_MILLIS_DEFAULT = 10L;
+    private static final String GROUP_COMMIT_BYTES_KEY = "file.groupCommitBytes";
+    private static final long GROUP_COMMIT_BYTES_DEFAULT = 4L * 1024 * 1024;
+
+    // 输出文件压缩格式
+    private CompressionCodec codec;
+    private static final String COMPRESSION_KEY = "file.compression";
+
+    // 每日归档, 未配置归档目录时不开启
+    private String archiveDirectory;
+    private String archiveCron;
+    private int archiveThreads;
+    private DailyArchiver.RetainMode archiveRetain;
+    private Scheduler archiveTask;
+    private static final String ARCHIVE_DIRECTORY_KEY = "archive.directory";
+    private static final String ARCHIVE_CRON_KEY = "archive.cron";
+    private static final String ARCHIVE_CRON_DEFAULT = "30 1 * * *";
+    private static final String ARCHIVE_THREADS_KEY = "archive.threads";
+    private static final int ARCHIVE_THREADS_DEFAULT = 4;
+    private static final String ARCHIVE_RETAIN_KEY = "archive.retain";
+    private int pipelineBufferSize;
+    private static final String PIPELINED_KEY = "file.pipelined";
+    private static final String PIPELINE_BUFFER_SIZE_KEY = "file.pipelineBufferSize";
+    private static final int PIPELINE_BUFFER_SIZE_DEFAULT = 100;
+    // 定时 roll, 所有 writer 共享一个时间轮线程
+    private TimingWheel roller;
+    // 时间轮槽数, 每槽 1 秒
+    private static final int ROLLER_WHEEL_SIZE = 512;
     // roll 时间间隔 默认为 0，即不按时间滚动文件
     private long rollInterval;
+    // 按写入字节数/event 数滚动出分段文件, 默认为 0 即不开启
+    private long rollSize;
+    private long rollCount;
+    private static final String ROLL_SIZE_KEY = "file.rollSize";
+    private static final String ROLL_COUNT_KEY = "file.rollCount";
     // 最大打开文件句柄
     private int maxOpenFiles;
 
@@ -73,6 +148,10 @@ public class MGSpoolFileSink extends AbstractSink implements Configurable {
     private String fileNameHeader;
     private static final String FILE_NAME_HEADER_DEFAULT = "basename";
 
+    private static final Joiner PATH_JOINER = Joiner.on(File.separator);
+    // 路径缓存的最小容量, 实际为 max(该值, maxOpenFiles * 4)
+    private static final int PATH_CACHE_SIZE_MIN = 1024;
+
 
     public void configure(Context context) {
         String directory = context.getString("sink.directory");
@@ -86,21 +165,48 @@ public class MGSpoolFileSink extends AbstractSink implements Configurable {
 
         maxOpenFiles = context.getInteger("file.maxOpenFiles", 30);
         rollInterval = context.getLong("file.rollInterval", 0L);
+        rollSize = context.getLong(ROLL_SIZE_KEY, 0L);
+        rollCount = context.getLong(ROLL_COUNT_KEY, 0L);
+        Preconditions.checkArgument(rollSize >= 0 && rollCount >= 0,
+                "%s and %s must not be negative", ROLL_SIZE_KEY, ROLL_COUNT_KEY);
 
-        String rollerName = "file-" + getName() + "-roll-timer-%d";
-        timedRollerPool = Executors.newScheduledThreadPool(maxOpenFiles,
-                new ThreadFactoryBuilder().setNameFormat(rollerName).build());
         this.directory = directory;
         this.hostHeaderName = context.getString(HOST_HEADER_KEY, HOST_NAME_DEFAULT);
         this.doneFilesTag = context.getString(DONE_FILES_TAG_KEY, DONE_FILES_TAG_DEFAULT);
         this.txnEventMax = context.getLong(BATCH_EVENT_KEY, TXN_EVENT_MAX_DEFAULT);
         this.fileNameHeader = context.getString("file.fileNameHeader", FILE_NAME_HEADER_DEFAULT);
+        this.pipelined = context.getBoolean(PIPELINED_KEY, false);
+        this.pipelineBufferSize = context.getInteger(PIPELINE_BUFFER_SIZE_KEY,
+                PIPELINE_BUFFER_SIZE_DEFAULT);
+        this.writerShards = context.getInteger(WRITER_SHARDS_KEY, 1);
+        Preconditions.checkArgument(writerShards > 0, "%s must be greater than 0", WRITER_SHARDS_KEY);
+        this.durability = GroupCommitter.Durability.valueOf(context.getString(DURABILITY_KEY,
+                GroupCommitter.Durability.NONE.toString()).toUpperCase(Locale.ENGLISH));
+        this.groupCommitMillis = context.getLong(GROUP_COMMIT_MILLIS_KEY, GROUP_COMMIT_MILLIS_DEFAULT);
+        this.groupCommitBytes = context.getLong(GROUP_COMMIT_BYTES_KEY, GROUP_COMMIT_BYTES_DEFAULT);
+        this.codec = CompressionCodec.valueOf(context.getString(COMPRESSION_KEY,
+                CompressionCodec.NONE.toString()).toUpperCase(Locale.ENGLISH));
+        codec.checkAvailable();
+        this.archiveDirectory = context.getString(ARCHIVE_DIRECTORY_KEY);
+        this.archiveCron = context.getString(ARCHIVE_CRON_KEY, ARCHIVE_CRON_DEFAULT);
+        this.archiveThreads = context.getInteger(ARCHIVE_THREADS_KEY, ARCHIVE_THREADS_DEFAULT);
+        this.archiveRetain = DailyArchiver.RetainMode.valueOf(context.getString(ARCHIVE_RETAIN_KEY,
+                DailyArchiver.RetainMode.KEEP.toString()).toUpperCase(Locale.ENGLISH));
+        Preconditions.checkArgument(archiveDirectory == null || SchedulingPattern.validate(archiveCron),
+                "Invalid %s: %s", ARCHIVE_CRON_KEY, archiveCron);
 
         logger.info("------------------- config ---------------------");
         logger.info("output dir: {}", directory);
         logger.info("host header name: {}", hostHeaderName);
         logger.info("rollInterval: every {}s", rollInterval);
+        logger.info("rollSize: {} bytes, rollCount: {} events", rollSize, rollCount);
         logger.info("batchEvent: {}", txnEventMax);
+        logger.info("pipelined: {}, buffer size: {}, writer shards: {}",
+                pipelined, pipelineBufferSize, writerShards);
+        logger.info("durability: {}, group commit window: {}ms / {} bytes",
+                durability, groupCommitMillis, groupCommitBytes);
+        logger.info("compression: {}", codec);
+        logger.info("archive dir: {}, cron: {}, retain: {}", archiveDirectory, archiveCron, archiveRetain);
         logger.info("------------------- config ---------------------");
 
         if (sinkCounter == null) {
@@ -109,14 +215,14 @@ public class MGSpoolFileSink extends AbstractSink implements Configurable {
     }
 
     public Status process() throws EventDeliveryException {
-
-        List<BucketFileWriter> writers = Lists.newArrayList();
+        if (pipelines != null) {
+            return processPipelined();
+        }
 
         Channel channel = getChannel();
         Transaction transaction = channel.getTransaction();
         transaction.begin();
         Event event = null;
-        Map<String, String> header;
 
         try {
             int txnEventCount;
@@ -126,70 +232,79 @@ public class MGSpoolFileSink extends AbstractSink implements Configurable {
                     break;
                 }
 
-                header = event.getHeaders();
-                String host = header.get(hostHeaderName);
-                String fileName = header.get(fileNameHeader);
-                String realPath = Joiner.on(File.separator).join(directory, host, fileName);
-                BucketFileWriter bucketFileWriter = sfWriters.get(realPath);
-
-                if (bucketFileWriter == null) {
-                    bucketFileWriter = new BucketFileWriter();
-                    bucketFileWriter.open(realPath, serializerType,
-                            serializerContext, rollInterval, timedRollerPool,
-                            sfWriters);
-                    sfWriters.put(realPath, bucketFileWriter);
-                }
-
-                if (!writers.contains(bucketFileWriter)) {
-                    writers.add(bucketFileWriter);
-                }
+                eventWriter.write(event);
+            }
 
-                // 上一个文件传输完毕 flush and rename and commit
-                if (header.containsKey(this.doneFilesTag)) {
-                    logger.info("last send is done, host: {}, file: {}", host, fileName);
-                    boolean success = Boolean.parseBoolean(header.get(this.doneFilesTag));
+            countBatch(txnEventCount);
 
-                    try {
-                        // flush all pending buckets before committing the transaction
-                        for (BucketFileWriter bf : writers) {
-                            bf.flush();
-                        }
-
-                        bucketFileWriter.close();
-                        bucketFileWriter.renameBucket(success);
-                        sfWriters.remove(realPath);
-                        writers.remove(bucketFileWriter);
-                        transaction.commit();
-                        if (txnEventCount > 0) {
-                            sinkCounter.addToEventDrainSuccessCount(txnEventCount);
-                        }
-
-                        return Status.READY;
+            // flush all pending buckets before committing the transaction
+            eventWriter.flush();
 
-                    } catch (InterruptedException e) {
-                        transaction.rollback();
-                        logger.warn("File IO error", e);
-                        return Status.BACKOFF;
-                    }
-                } else {
-                    bucketFileWriter.append(event);
-                }
+            transaction.commit();
+            // 事务提交后再重命名本批次完成的文件
+            eventWriter.commitDoneFiles();
+            if (txnEventCount > 0) {
+                sinkCounter.addToEventDrainSuccessCount(txnEventCount);
             }
 
-            if (txnEventCount == 0) {
-                sinkCounter.incrementBatchEmptyCount();
-            } else if (txnEventCount == txnEventMax) {
-                sinkCounter.incrementBatchCompleteCount();
+            if (event == null) {
+                return Status.BACKOFF;
+            }
+            return Status.READY;
+        } catch (IOException | InterruptedException e) {
+            transaction.rollback();
+            eventWriter.discardDoneFiles();
+            logger.warn("File IO error", e);
+            return Status.BACKOFF;
+        } catch (Throwable th) {
+            transaction.rollback();
+            eventWriter.discardDoneFiles();
+            logger.error("process failed", th);
+            if (th instanceof Error) {
+                throw (Error) th;
             } else {
-                sinkCounter.incrementBatchUnderflowCount();
+                throw new EventDeliveryException(th);
             }
+        } finally {
+            transaction.close();
+        }
+    }
 
-            // flush all pending buckets before committing the transaction
-            for (BucketFileWriter bucketFileWriter : writers) {
-                bucketFileWriter.flush();
+    /**
+     * 流水线模式: event 按 主机名/文件名 交给对应分片的写线程写入, sink 线程继续从 channel 读取,
+     * 批次结束时等待所有分片写入并 flush 后提交事务, 提交后重命名各分片本批次完成的文件
+     * 同一文件总是由同一分片按顺序写入
+     */
+    private Status processPipelined() throws EventDeliveryException {
+        Channel channel = getChannel();
+        Transaction transaction = channel.getTransaction();
+        transaction.begin();
+        Event event = null;
+
+        try {
+            int txnEventCount;
+            for (txnEventCount = 0; txnEventCount < txnEventMax; txnEventCount++) {
+                event = channel.take();
+                if (event == null) {
+                    break;
+                }
+                route(event).add(event);
             }
 
+            countBatch(txnEventCount);
+
+            // 各分片并行 flush
+            for (AsyncWriterPipeline pipeline : pipelines) {
+                pipeline.startSync();
+            }
+            for (AsyncWriterPipeline pipeline : pipelines) {
+                pipeline.awaitSync();
+            }
             transaction.commit();
+            // 写线程已完成 flush, 在 sink 线程中重命名
+            for (EventWriter shardWriter : shardWriters) {
+                shardWriter.commitDoneFiles();
+            }
             if (txnEventCount > 0) {
                 sinkCounter.addToEventDrainSuccessCount(txnEventCount);
             }
@@ -198,11 +313,13 @@ public class MGSpoolFileSink extends AbstractSink implements Configurable {
                 return Status.BACKOFF;
             }
             return Status.READY;
-        } catch (IOException e) {
+        } catch (IOException | InterruptedException e) {
+            abortPipelines();
             transaction.rollback();
             logger.warn("File IO error", e);
             return Status.BACKOFF;
         } catch (Throwable th) {
+            abortPipelines();
             transaction.rollback();
             logger.error("process failed", th);
             if (th instanceof Error) {
@@ -215,9 +332,356 @@ public class MGSpoolFileSink extends AbstractSink implements Configurable {
         }
     }
 
+    private AsyncWriterPipeline route(Event event) {
+        if (pipelines.length == 1) {
+            return pipelines[0];
+        }
+        Map<String, String> header = event.getHeaders();
+        int hash = 31 * Objects.hashCode(header.get(hostHeaderName))
+                + Objects.hashCode(header.get(fileNameHeader));
+        return pipelines[(hash & Integer.MAX_VALUE) % pipelines.length];
+    }
+
+    private void abortPipelines() {
+        for (AsyncWriterPipeline pipeline : pipelines) {
+            pipeline.abort();
+        }
+        for (EventWriter shardWriter : shardWriters) {
+            shardWriter.discardDoneFiles();
+        }
+    }
+
+    private void countBatch(int txnEventCount) {
+        if (txnEventCount == 0) {
+            sinkCounter.incrementBatchEmptyCount();
+        } else if (txnEventCount == txnEventMax) {
+            sinkCounter.incrementBatchCompleteCount();
+        } else {
+            sinkCounter.incrementBatchUnderflowCount();
+        }
+    }
+
     public synchronized void start() {
         super.start();
-        this.sfWriters = new FileWriterLinkedHashMap(maxOpenFiles);
+        if (durability != GroupCommitter.Durability.NONE) {
+            this.groupCommitter = new GroupCommitter("file-" + getName() + "-group-commit-%d",
+                    durability, groupCommitMillis, groupCommitBytes);
+        }
+        if (archiveDirectory != null) {
+            archiveTask = new Scheduler();
+            archiveTask.schedule(archiveCron, new DailyArchiver(new File(directory),
+                    new File(archiveDirectory), archiveThreads, archiveRetain));
+            archiveTask.start();
+        }
+        this.roller = new TimingWheel("file-" + getName() + "-roll-timer-%d", 1L, TimeUnit.SECONDS,
+                ROLLER_WHEEL_SIZE);
+        this.writerCaches = Lists.newArrayList();
+        if (pipelined || writerShards > 1) {
+            // 每个分片独立的 writer 与写线程, 最大打开文件数按分片平均
+            int shardOpenFiles = Math.max(1, maxOpenFiles / writerShards);
+            this.pipelines = new AsyncWriterPipeline[writerShards];
+            this.shardWriters = new EventWriter[writerShards];
+            for (int i = 0; i < writerShards; i++) {
+                FileWriterLinkedHashMap cache = new FileWriterLinkedHashMap(shardOpenFiles);
+                writerCaches.add(cache);
+                shardWriters[i] = new EventWriter(cache);
+                pipelines[i] = new AsyncWriterPipeline("file-" + getName() + "-writer-" + i + "-%d",
+                        pipelineBufferSize, shardWriters[i]);
+            }
+        } else {
+            FileWriterLinkedHashMap cache = new FileWriterLinkedHashMap(maxOpenFiles);
+            writerCaches.add(cache);
+            this.eventWriter = new EventWriter(cache);
+        }
+        // 定时输出 writer 缓存统计
+        final TimingWheel statsTimer = roller;
+        roller.schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < writerCaches.size(); i++) {
+                    logger.info("writer cache {}: {}", i, writerCaches.get(i));
+                }
+                statsTimer.schedule(this, WRITER_STATS_INTERVAL, TimeUnit.MINUTES);
+            }
+        }, WRITER_STATS_INTERVAL, TimeUnit.MINUTES);
         sinkCounter.start();
     }
+
+    @Override
+    public synchronized void stop() {
+        if (pipelines != null) {
+            for (AsyncWriterPipeline pipeline : pipelines) {
+                pipeline.close();
+            }
+            pipelines = null;
+            shardWriters = null;
+        }
+        if (roller != null) {
+            roller.close();
+            roller = null;
+        }
+        for (FileWriterLinkedHashMap cache : writerCaches) {
+            logger.info("writer cache: {}", cache);
+            cache.shutdown();
+        }
+        if (groupCommitter != null) {
+            groupCommitter.close();
+            groupCommitter = null;
+        }
+        if (archiveTask != null) {
+            archiveTask.stop();
+            archiveTask = null;
+        }
+        super.stop();
+    }
+
+    /**
+     * 按 主机名/文件名 将 event 写入对应文件, 记录本批次写过的文件以便提交前 flush
+     * 流水线模式下只在写线程中调用
+     * 路径按 (主机名, 文件名) 缓存复用, 本批次已取得的 writer 直接使用, 命中时每个 event 不再创建对象
+     */
+    private class EventWriter implements AsyncWriterPipeline.Handler {
+
+        private final FileWriterLinkedHashMap sfWriters;
+        // 本批次写过的文件
+        private final Set<BucketFileWriter> writers = Sets.newHashSet();
+        // (主机名, 文件名) -> 输出路径, 跨批次复用; 超过上限时清空
+        private final Map<PathKey, PathEntry> paths = Maps.newHashMap();
+        private final int maxPaths;
+        // 本批次缓存了 writer 的路径, flush 后清除, 保证 writer 缓存每批次按访问顺序更新
+        private final List<PathEntry> batchEntries = Lists.newArrayList();
+        // 查询用的 key, 避免每个 event 创建对象
+        private final PathKey probe = new PathKey();
+        // 本批次已完成 (收到结束标记) 的文件, 组提交后关闭, 事务提交后重命名
+        private final Map<String, DoneFile> doneFiles = Maps.newLinkedHashMap();
+        // 本批次写入的字节数
+        private long bytes;
+
+        EventWriter(FileWriterLinkedHashMap sfWriters) {
+            this.sfWriters = sfWriters;
+            this.maxPaths = Math.max(PATH_CACHE_SIZE_MIN, maxOpenFiles * 4);
+        }
+
+        @Override
+        public void write(List<Event> events) throws IOException, InterruptedException {
+            for (Event event : events) {
+                write(event);
+            }
+        }
+
+        void write(Event event) throws IOException, InterruptedException {
+            Map<String, String> header = event.getHeaders();
+            String host = header.get(hostHeaderName);
+            String fileName = header.get(fileNameHeader);
+            String blockOffset = header.get(BlockDeserializer.OFFSET_HEADER);
+            PathEntry entry = resolve(host, fileName);
+            BucketFileWriter bucketFileWriter = entry.writer;
+
+            // 本批次第一次写入该文件, 或 writer 已被定时 roll 关闭
+            if (bucketFileWriter == null || bucketFileWriter.isClosed()) {
+                bucketFileWriter = sfWriters.get(entry.path);
+                if (bucketFileWriter == null) {
+                    // 同一文件在本批次中已完成又重新发送, 新文件打开前先完成上一个文件的重命名
+                    DoneFile doneFile = doneFiles.remove(entry.path);
+                    if (doneFile != null) {
+                        doneFile.writer.close();
+                        doneFile.rename();
+                    }
+                    // 按块传输的文件按偏移量写入, 不压缩
+                    // 结束标记不带偏移量, 已有未压缩的临时文件 (按块传输的 writer 被淘汰、定时 roll 关闭或 sink 重启) 时同样不压缩
+                    CompressionCodec fileCodec = codec;
+                    if (blockOffset != null || (codec != CompressionCodec.NONE
+                            && !BucketFileWriter.isInProgress(entry.path, codec)
+                            && BucketFileWriter.isInProgress(entry.path, CompressionCodec.NONE))) {
+                        fileCodec = CompressionCodec.NONE;
+                    }
+                    bucketFileWriter = new BucketFileWriter();
+                    bucketFileWriter.setRollPolicy(rollSize, rollCount);
+                    bucketFileWriter.setDurability(durability);
+                    bucketFileWriter.open(entry.path, serializerType,
+                            serializerContext, rollInterval, roller,
+                            sfWriters, fileCodec);
+                    // 打开新文件可能淘汰其他 writer, 本批次缓存的 writer 需要重新获取
+                    releaseEntries();
+                    sfWriters.put(entry.path, bucketFileWriter);
+                }
+                entry.writer = bucketFileWriter;
+                batchEntries.add(entry);
+            }
+
+            // 上一个文件传输完毕, 本批次组提交后 close, 事务提交后 rename
+            String done = header.get(doneFilesTag);
+            if (done != null) {
+                logger.info("last send is done, host: {}, file: {}", host, fileName);
+                writers.add(bucketFileWriter);
+                entry.writer = null;
+                sfWriters.remove(entry.path);
+                doneFiles.put(entry.path, new DoneFile(bucketFileWriter, Boolean.parseBoolean(done)));
+                return;
+            }
+
+            writers.add(bucketFileWriter);
+            bytes += event.getBody().length;
+            // 按块传输的 event 按偏移量写入, 否则按行追加
+            if (blockOffset != null) {
+                bucketFileWriter.appendBlock(Long.parseLong(blockOffset), event.getBody());
+            } else {
+                bucketFileWriter.append(event);
+                // 达到大小/数量滚动条件, 当前分段完成, 下一个 event 打开新分段
+                if (bucketFileWriter.shouldRoll()) {
+                    logger.info("Rolling file part, host: {}, file: {}", host, fileName);
+                    complete(entry);
+                    bucketFileWriter.renamePart();
+                    sfWriters.remove(entry.path, bucketFileWriter);
+                }
+            }
+        }
+
+        /**
+         * 事务提交后重命名本批次完成的文件
+         */
+        void commitDoneFiles() {
+            for (DoneFile doneFile : doneFiles.values()) {
+                doneFile.rename();
+            }
+            doneFiles.clear();
+        }
+
+        /**
+         * 事务回滚时不重命名, 文件关闭后保留为临时文件, 重新发送的结束标记到达时再重命名
+         */
+        void discardDoneFiles() {
+            if (!doneFiles.isEmpty()) {
+                logger.warn("Transaction rolled back, {} done files are kept as temp files: {}",
+                        doneFiles.size(), doneFiles.keySet());
+                for (DoneFile doneFile : doneFiles.values()) {
+                    try {
+                        doneFile.writer.close();
+                    } catch (IOException e) {
+                        logger.warn("Close done file failed", e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                doneFiles.clear();
+            }
+        }
+
+        /**
+         * 获取 (主机名, 文件名) 对应的路径, 命中时不创建对象
+         */
+        private PathEntry resolve(String host, String fileName) {
+            PathEntry entry = paths.get(probe.set(host, fileName));
+            if (entry == null) {
+                if (paths.size() >= maxPaths) {
+                    paths.clear();
+                }
+                entry = new PathEntry(PATH_JOINER.join(directory, host, fileName));
+                paths.put(new PathKey().set(host, fileName), entry);
+            }
+            return entry;
+        }
+
+        private void releaseEntries() {
+            for (PathEntry entry : batchEntries) {
+                entry.writer = null;
+            }
+            batchEntries.clear();
+        }
+
+        /**
+         * 滚动分段时关闭文件, 开启落盘时关闭前落盘, 之后不再参与本批次的 flush 与组提交
+         * 分段滚动较少, 不等待组提交
+         */
+        private void complete(PathEntry entry) throws IOException, InterruptedException {
+            BucketFileWriter bucketFileWriter = entry.writer;
+            bucketFileWriter.close();
+            writers.remove(bucketFileWriter);
+            entry.writer = null;
+        }
+
+        /**
+         * flush all pending buckets, 开启落盘时等待组提交完成
+         * 组提交完成后关闭本批次收到结束标记的文件, 已落盘的文件关闭时不再 force
+         */
+        @Override
+        public void flush() throws IOException {
+            try {
+                for (BucketFileWriter bucketFileWriter : writers) {
+                    bucketFileWriter.flush();
+                }
+                if (groupCommitter != null) {
+                    groupCommitter.sync(writers, bytes);
+                }
+                for (DoneFile doneFile : doneFiles.values()) {
+                    doneFile.writer.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for group commit");
+            } finally {
+                writers.clear();
+                releaseEntries();
+                bytes = 0L;
+            }
+        }
+    }
+
+    /**
+     * 路径缓存的 key, 文件名通常来自同一个 header 对象, equals 先比较引用
+     */
+    private static final class PathKey {
+        private String host;
+        private String fileName;
+        private int hash;
+
+        PathKey set(String host, String fileName) {
+            this.host = host;
+            this.fileName = fileName;
+            this.hash = 31 * Objects.hashCode(host) + Objects.hashCode(fileName);
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) o;
+            return hash == other.hash && Objects.equals(host, other.host)
+                    && Objects.equals(fileName, other.fileName);
+        }
+    }
+
+    /**
+     * 已完成待重命名的文件
+     */
+    private static final class DoneFile {
+        private final BucketFileWriter writer;
+        private final boolean success;
+
+        DoneFile(BucketFileWriter writer, boolean success) {
+            this.writer = writer;
+            this.success = success;
+        }
+
+        void rename() {
+            writer.renameBucket(success);
+        }
+    }
+
+    private static final class PathEntry {
+        private final String path;
+        // 本批次使用的 writer
+        private BucketFileWriter writer;
+
+        PathEntry(String path) {
+            this.path = path;
+        }
+    }
 }
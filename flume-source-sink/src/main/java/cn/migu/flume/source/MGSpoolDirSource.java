@@ -1,7 +1,11 @@
 package cn.migu.flume.source;
 
 import cn.migu.flume.configuration.MGSpoolDirConfig;
+import cn.migu.flume.helper.DirectoryWatcher;
 import cn.migu.flume.helper.MGReliableSpoolFileEventReader;
+import cn.migu.flume.interceptor.AdaptiveRateController;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.cronutils.descriptor.CronDescriptor;
 import com.cronutils.model.definition.CronDefinition;
 import com.cronutils.model.definition.CronDefinitionBuilder;
@@ -24,9 +28,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static cn.migu.flume.configuration.MGSpoolDirConfig.*;
 import static com.cronutils.model.CronType.UNIX;
@@ -91,10 +94,12 @@ public class MGSpoolDirSource extends AbstractSource implements
 
     // jmx 监听相关
     private SourceCounter sourceCounter;
-    private MGReliableSpoolFileEventReader reader;
+    private List<MGReliableSpoolFileEventReader> readers;
     private ScheduledExecutorService executor;
+    // 并行读取线程池
+    private ExecutorService readerPool;
     private boolean backoff = true;
-    private boolean hitChannelException = false;
+    private volatile boolean hitChannelException = false;
     private int maxBackoff;
     private MGSpoolDirConfig.ConsumeOrder consumeOrder;
 
@@ -111,6 +116,31 @@ public class MGSpoolDirSource extends AbstractSource implements
 
     private Scheduler cronTask;
     private String deletePolicy;
+    // 已采集文件 journal 压缩阈值
+    private int doneFileCompactThreshold;
+    // 已采集文件记录过期天数
+    private int doneFileExpireDays;
+    // 读取位置落盘间隔 单位：毫秒
+    private long trackerSyncInterval;
+    // 文件标识方式
+    private FileIdentityMode fileIdentity;
+    private int fingerprintBytes;
+    // 增量采集仍在写入的文件
+    private boolean tailFiles;
+    private int tailQuietSeconds;
+    // 下一个文件预读字节数
+    private long prefetchBytes;
+    // 并行读取的 reader 数
+    private int parallelism;
+    // 监听模式: 目录有新文件即采集
+    private boolean watchMode;
+    // 文件稳定时长 单位：秒
+    private int watchSettleSeconds;
+    // 全量扫描校准间隔 单位：分钟
+    private int watchReconcileInterval;
+    private DirectoryWatcher directoryWatcher;
+    // 监听模式下是否已有等待执行的采集任务
+    private final AtomicBoolean runPending = new AtomicBoolean(false);
 
 
     @Override
@@ -121,34 +151,33 @@ public class MGSpoolDirSource extends AbstractSource implements
 
         File directory = new File(spoolDirectory);
 
-        // 初始化 reader
+        // 初始化 reader, 并行模式下每个 reader 负责一部分文件, 共享已采集文件记录与读取位置
+        readers = Lists.newArrayListWithCapacity(parallelism);
         try {
-            reader = new MGReliableSpoolFileEventReader.Builder()
-                    .spoolDirectory(directory)
-                    .completedSuffix(completedSuffix)
-                    .ignorePattern(ignorePattern)
-                    .matchPattern(matchPattern)
-                    .trackerDirPath(trackerDirPath)
-                    .annotateFileName(fileHeader)
-                    .fileNameHeader(fileHeaderKey)
-                    .annotateBaseName(basenameHeader)
-                    .baseNameHeader(basenameHeaderKey)
-                    .deserializerType(deserializerType)
-                    .fileDoneHeader(fileDoneHeaderTag)
-                    .deserializerContext(deserializerContext)
-                    .inputCharset(inputCharset)
-                    .decodeErrorPolicy(decodeErrorPolicy)
-                    .consumeOrder(consumeOrder)
-                    .deletePolicy(deletePolicy)
-                    .build();
+            for (int i = 0; i < parallelism; i++) {
+                readers.add(newReaderBuilder(directory)
+                        .doneFileRegistry(i == 0 ? null : readers.get(0).getDoneFileRegistry())
+                        .positionStore(i == 0 ? null : readers.get(0).getPositionStore())
+                        .partition(i, parallelism)
+                        .build());
+            }
         } catch (IOException ioe) {
             throw new FlumeException("Error instantiating spooling event parser", ioe);
         }
 
-        Runnable runner = new SpoolDirectoryRunnable(reader, sourceCounter);
+        Runnable runner;
+        if (parallelism == 1) {
+            runner = new SpoolDirectoryRunnable(readers.get(0), sourceCounter);
+        } else {
+            readerPool = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                    .setNameFormat("spool-" + getName() + "-reader-%d").build());
+            runner = new ParallelSpoolDirectoryRunnable();
+        }
 
-        // 当同时都正确配置了，cron 优先级更高
-        if (SchedulingPattern.validate(cronExp)) {
+        if (watchMode) {
+            startWatching(directory, runner);
+        } else if (SchedulingPattern.validate(cronExp)) {
+            // 当同时都正确配置了，cron 优先级更高
             // print cron info
             // CronUtils commons-lang3 3.4
             CronDefinition cronDefinition = CronDefinitionBuilder.instanceDefinitionFor(UNIX);
@@ -174,8 +203,81 @@ public class MGSpoolDirSource extends AbstractSource implements
         sourceCounter.start();
     }
 
+    /**
+     * 监听模式: watcher 发现稳定的新文件后提交采集任务, 同一时间最多只有一个等待中的任务
+     */
+    private void startWatching(File directory, final Runnable runner) {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        final Runnable watchRunner = new Runnable() {
+            @Override
+            public void run() {
+                runPending.set(false);
+                runner.run();
+            }
+        };
+
+        directoryWatcher = new DirectoryWatcher(directory, readers.get(0).getDoneFileRegistry(),
+                TimeUnit.SECONDS.toMillis(watchSettleSeconds),
+                TimeUnit.MINUTES.toMillis(watchReconcileInterval),
+                new DirectoryWatcher.Listener() {
+                    @Override
+                    public void onFilesReady() {
+                        if (runPending.compareAndSet(false, true)) {
+                            executor.submit(watchRunner);
+                        }
+                    }
+                });
+        for (MGReliableSpoolFileEventReader reader : readers) {
+            reader.setDirectoryWatcher(directoryWatcher);
+        }
+
+        try {
+            directoryWatcher.start();
+        } catch (IOException ioe) {
+            throw new FlumeException("Error watching spooling directory: " + directory, ioe);
+        }
+        logger.info("watch mode: collect new files after {} seconds unchanged, reconcile every {} minutes",
+                watchSettleSeconds, watchReconcileInterval);
+    }
+
+    private MGReliableSpoolFileEventReader.Builder newReaderBuilder(File directory) {
+        return new MGReliableSpoolFileEventReader.Builder()
+                .spoolDirectory(directory)
+                .completedSuffix(completedSuffix)
+                .ignorePattern(ignorePattern)
+                .matchPattern(matchPattern)
+                .trackerDirPath(trackerDirPath)
+                .annotateFileName(fileHeader)
+                .fileNameHeader(fileHeaderKey)
+                .annotateBaseName(basenameHeader)
+                .baseNameHeader(basenameHeaderKey)
+                .deserializerType(deserializerType)
+                .fileDoneHeader(fileDoneHeaderTag)
+                .deserializerContext(deserializerContext)
+                .inputCharset(inputCharset)
+                .decodeErrorPolicy(decodeErrorPolicy)
+                .consumeOrder(consumeOrder)
+                .deletePolicy(deletePolicy)
+                .doneFileCompactThreshold(doneFileCompactThreshold)
+                .doneFileExpireDays(doneFileExpireDays)
+                .positionSyncInterval(trackerSyncInterval)
+                .fileIdentity(fileIdentity)
+                .fingerprintBytes(fingerprintBytes)
+                .tailFiles(tailFiles)
+                .tailQuietMillis(TimeUnit.SECONDS.toMillis(tailQuietSeconds))
+                .prefetchBytes(prefetchBytes);
+    }
+
     @Override
     public synchronized void stop() {
+        if (null != directoryWatcher) {
+            try {
+                directoryWatcher.close();
+            } catch (IOException e) {
+                logger.warn("Error closing directory watcher", e);
+            }
+        }
+
         if (null != executor) {
             executor.shutdown();
             try {
@@ -188,6 +290,26 @@ public class MGSpoolDirSource extends AbstractSource implements
             cronTask.stop();
         }
 
+        if (null != readerPool) {
+            readerPool.shutdownNow();
+            try {
+                readerPool.awaitTermination(10L, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                logger.info("Interrupted while awaiting reader termination", ex);
+            }
+        }
+
+        // 关闭 reader, 读取位置落盘
+        if (null != readers) {
+            for (MGReliableSpoolFileEventReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.warn("Error closing reader", e);
+                }
+            }
+        }
+
         super.stop();
         sourceCounter.stop();
         logger.info("SpoolDir source {} stopped. Metrics: {}", getName(), sourceCounter);
@@ -239,17 +361,43 @@ public class MGSpoolDirSource extends AbstractSource implements
         initialDelay = context.getLong(INITIAL_DELAY, INITIAL_DELAY_DEFAULT);
         pollNewFileDelay = context.getInteger(POLL_NEW_DELAY, POLL_NEW_DELAY_DEFAULT);
         matchPattern = context.getString(MATCH_PAT, DEFAULT_MATCH_PAT);
+        doneFileCompactThreshold = context.getInteger(DONE_FILE_COMPACT_THRESHOLD,
+                DEFAULT_DONE_FILE_COMPACT_THRESHOLD);
+        doneFileExpireDays = context.getInteger(DONE_FILE_EXPIRE_DAYS,
+                DEFAULT_DONE_FILE_EXPIRE_DAYS);
+        trackerSyncInterval = context.getLong(TRACKER_SYNC_INTERVAL, DEFAULT_TRACKER_SYNC_INTERVAL);
+        Preconditions.checkArgument(trackerSyncInterval >= 0, "%s must not be negative",
+                TRACKER_SYNC_INTERVAL);
+        fileIdentity = FileIdentityMode.valueOf(context.getString(FILE_IDENTITY,
+                DEFAULT_FILE_IDENTITY.toString()).toUpperCase(Locale.ENGLISH));
+        fingerprintBytes = context.getInteger(FINGERPRINT_BYTES, DEFAULT_FINGERPRINT_BYTES);
+        Preconditions.checkArgument(fingerprintBytes > 0, "%s must be greater than 0",
+                FINGERPRINT_BYTES);
+        tailFiles = context.getBoolean(TAIL_FILES, DEFAULT_TAIL_FILES);
+        tailQuietSeconds = context.getInteger(TAIL_QUIET_SECONDS, DEFAULT_TAIL_QUIET_SECONDS);
+        Preconditions.checkArgument(tailQuietSeconds >= 0, "%s must not be negative",
+                TAIL_QUIET_SECONDS);
+        prefetchBytes = context.getLong(PREFETCH_BYTES, DEFAULT_PREFETCH_BYTES);
+        Preconditions.checkArgument(prefetchBytes >= 0, "%s must not be negative",
+                PREFETCH_BYTES);
 
         // "Hack" to support backwards compatibility with previous generation of
         // spooling directory source, which did not support deserializers
         Integer bufferMaxLineLength = context.getInteger(BUFFER_MAX_LINE_LENGTH);
         if (bufferMaxLineLength != null && deserializerType != null &&
-                deserializerType.equalsIgnoreCase(DEFAULT_DESERIALIZER)) {
+                (deserializerType.equalsIgnoreCase(DEFAULT_DESERIALIZER) ||
+                        deserializerType.equalsIgnoreCase(MMAP_LINE_DESERIALIZER))) {
             deserializerContext.put(LineDeserializer.MAXLINE_KEY,
                     bufferMaxLineLength.toString());
         }
 
         maxBackoff = context.getInteger(MAX_BACKOFF, DEFAULT_MAX_BACKOFF);
+        parallelism = context.getInteger(PARALLELISM, DEFAULT_PARALLELISM);
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be greater than 0");
+        watchMode = context.getBoolean(WATCH_MODE, DEFAULT_WATCH_MODE);
+        watchSettleSeconds = context.getInteger(WATCH_SETTLE_SECONDS, DEFAULT_WATCH_SETTLE_SECONDS);
+        watchReconcileInterval = context.getInteger(WATCH_RECONCILE_INTERVAL,
+                DEFAULT_WATCH_RECONCILE_INTERVAL);
         if (sourceCounter == null) {
             sourceCounter = new SourceCounter(getName());
         }
@@ -260,7 +408,9 @@ public class MGSpoolDirSource extends AbstractSource implements
         logger.info("match regex: {}", this.matchPattern);
         logger.info("ignore regex: {}", this.ignorePattern);
         logger.info("cron expression: {}", this.cronExp);
+        logger.info("watch mode: {}", this.watchMode);
         logger.info("delete policy: {}", this.deletePolicy);
+        logger.info("parallelism: {}", this.parallelism);
         logger.info("[header]: file send complete tag: {}", this.fileDoneHeaderTag);
         logger.info("[header]: fileName: {}", this.basenameHeaderKey);
         logger.info("---------------------------config------------------------");
@@ -289,6 +439,35 @@ public class MGSpoolDirSource extends AbstractSource implements
         return sourceCounter;
     }
 
+    /**
+     * 并行读取: 每个 reader 在独立线程中读取各自负责的文件, 全部读完后本次任务结束
+     */
+    private class ParallelSpoolDirectoryRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            List<Future<?>> futures = Lists.newArrayListWithCapacity(readers.size());
+            for (MGReliableSpoolFileEventReader reader : readers) {
+                futures.add(readerPool.submit(new SpoolDirectoryRunnable(reader, sourceCounter)));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.error("spool reader failed", e.getCause());
+                } catch (InterruptedException e) {
+                    logger.info("Interrupted while waiting for spool readers", e);
+                    for (Future<?> f : futures) {
+                        f.cancel(true);
+                    }
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
     private class SpoolDirectoryRunnable implements Runnable {
         private MGReliableSpoolFileEventReader reader;
         private SourceCounter sourceCounter;
@@ -325,6 +504,10 @@ public class MGSpoolDirSource extends AbstractSource implements
                                 "source will try again after " + String.valueOf(backoffInterval) +
                                 " milliseconds");
                         hitChannelException = true;
+                        // 无法区分写入失败的 channel, 上报给该 source 的所有 channel
+                        for (Channel channel : getChannelProcessor().getSelector().getAllChannels()) {
+                            AdaptiveRateController.reportChannelFull(channel.getName());
+                        }
                         if (backoff) {
                             TimeUnit.MILLISECONDS.sleep(backoffInterval);
                             backoffInterval = backoffInterval << 1;
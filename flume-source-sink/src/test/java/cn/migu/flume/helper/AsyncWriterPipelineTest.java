@@ -0,0 +1,91 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/14 10:20
+ * @Version: v1.0
+ */
+public class AsyncWriterPipelineTest extends TestCase {
+
+    private RecordingHandler handler;
+    private AsyncWriterPipeline pipeline;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        handler = new RecordingHandler();
+        pipeline = new AsyncWriterPipeline("test-writer-%d", 3, handler);
+    }
+
+    public void tearDown() throws Exception {
+        pipeline.close();
+    }
+
+    public void testOrderAndSync() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            pipeline.add(event(i));
+        }
+        pipeline.sync();
+
+        assertEquals(10, handler.written.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(String.valueOf(i), handler.written.get(i));
+        }
+        assertEquals(1, handler.flushed);
+    }
+
+    public void testWriteFailure() throws Exception {
+        handler.fail = true;
+        pipeline.add(event(0));
+        try {
+            pipeline.sync();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        // 回滚后继续使用
+        handler.fail = false;
+        pipeline.abort();
+        pipeline.add(event(1));
+        pipeline.sync();
+        assertEquals(Lists.newArrayList("1"), handler.written);
+    }
+
+    private static Event event(int i) {
+        return EventBuilder.withBody(String.valueOf(i), Charsets.UTF_8);
+    }
+
+    private static class RecordingHandler implements AsyncWriterPipeline.Handler {
+        private final List<String> written = Lists.newArrayList();
+        private int flushed;
+        private volatile boolean fail;
+
+        @Override
+        public void write(List<Event> events) throws IOException {
+            if (fail) {
+                throw new IOException("disk full");
+            }
+            for (Event event : events) {
+                written.add(new String(event.getBody(), Charsets.UTF_8));
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushed++;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/9/28 10:15
+ * @Version: v1.0
+ */
+public class BlockDeserializerTest extends TestCase {
+
+    private File file;
+    private Context context;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("block", ".log");
+        Files.write("0123456789", file, Charsets.UTF_8);
+        context = new Context();
+        context.put(BlockDeserializer.BLOCK_SIZE_KEY, "4");
+    }
+
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testReadBlocks() throws Exception {
+        BlockDeserializer des = new BlockDeserializer(file, new MemoryPositionTracker(0L), context);
+
+        List<Event> events = des.readEvents(10);
+        assertEquals(3, events.size());
+        assertBlock(events.get(0), "0123", 0L, 0L);
+        assertBlock(events.get(1), "4567", 4L, 1L);
+        assertBlock(events.get(2), "89", 8L, 2L);
+        assertTrue(des.readEvents(10).isEmpty());
+        des.close();
+    }
+
+    public void testResumeFromTracker() throws Exception {
+        MemoryPositionTracker tracker = new MemoryPositionTracker(0L);
+        BlockDeserializer des = new BlockDeserializer(file, tracker, context);
+        des.readEvent();
+        des.mark();
+        des.readEvent();
+        des.reset();
+        assertBlock(des.readEvent(), "4567", 4L, 1L);
+        des.close();
+
+        BlockDeserializer resumed = new BlockDeserializer(file, tracker, context);
+        assertBlock(resumed.readEvent(), "4567", 4L, 1L);
+        resumed.close();
+    }
+
+    private static void assertBlock(Event event, String body, long offset, long seq) {
+        assertEquals(body, new String(event.getBody(), Charsets.UTF_8));
+        assertEquals(Long.toString(offset), event.getHeaders().get(BlockDeserializer.OFFSET_HEADER));
+        assertEquals(Long.toString(seq), event.getHeaders().get(BlockDeserializer.SEQUENCE_HEADER));
+    }
+
+}
@@ -1,8 +1,19 @@
 package cn.migu.flume.helper;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import junit.framework.TestCase;
+import org.apache.flume.Context;
+import org.apache.flume.event.EventBuilder;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 /**
  * All rights Reserved, Designed by Migu.cn
@@ -13,13 +24,28 @@ import java.util.regex.Pattern;
  * @Version: v1.0
  */
 public class BucketFileWriterTest extends TestCase {
+
+    private File dir;
+    private TimingWheel roller;
+    private FileWriterLinkedHashMap sfWriters;
+
     public void setUp() throws Exception {
         super.setUp();
-
+        dir = Files.createTempDir();
+        roller = new TimingWheel("bucket-writer-test-%d", 1, TimeUnit.SECONDS, 8);
+        sfWriters = new FileWriterLinkedHashMap(4);
     }
 
     public void tearDown() throws Exception {
-
+        roller.close();
+        sfWriters.shutdown();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
     }
 
     public void testGetCounterTime() throws Exception {
@@ -47,4 +73,261 @@ public class BucketFileWriterTest extends TestCase {
 
     }
 
+    public void testRollByCount() throws Exception {
+        String path = new File(dir, "a.log").getPath();
+        BucketFileWriter writer = open(path, 0, 2);
+        for (int i = 0; i < 5; i++) {
+            writer.append(EventBuilder.withBody("line" + i, Charsets.UTF_8));
+            if (writer.shouldRoll()) {
+                writer.close();
+                writer.renamePart();
+                writer = open(path, 0, 2);
+            }
+        }
+        writer.close();
+        writer.renameBucket(true);
+
+        assertEquals("line0\nline1\n", read(path + ".part-00000"));
+        assertEquals("line2\nline3\n", read(path + ".part-00001"));
+        assertEquals("line4\n", read(path + ".part-00002"));
+        assertFalse(new File(path).exists());
+        assertFalse(new File(path + ".tmp").exists());
+    }
+
+    public void testRollBySize() throws Exception {
+        String path = new File(dir, "b.log").getPath();
+        BucketFileWriter writer = open(path, 10, 0);
+        writer.append(EventBuilder.withBody("12345", Charsets.UTF_8));
+        assertFalse(writer.shouldRoll());
+        writer.append(EventBuilder.withBody("67890", Charsets.UTF_8));
+        assertTrue(writer.shouldRoll());
+        writer.close();
+        writer.renamePart();
+
+        // 最后一段为空时不生成空文件
+        writer = open(path, 10, 0);
+        writer.close();
+        writer.renameBucket(true);
+        assertEquals("12345\n67890\n", read(path + ".part-00000"));
+        assertFalse(new File(path + ".part-00001").exists());
+
+        // 未完整传输的最后一段
+        writer = open(path + "2", 10, 0);
+        writer.append(EventBuilder.withBody("12345", Charsets.UTF_8));
+        writer.append(EventBuilder.withBody("67890", Charsets.UTF_8));
+        writer.close();
+        writer.renamePart();
+        writer = open(path + "2", 10, 0);
+        writer.append(EventBuilder.withBody("x", Charsets.UTF_8));
+        writer.close();
+        writer.renameBucket(false);
+        assertEquals("x\n", read(path + "2.part-00001.uncompleted"));
+    }
+
+    public void testNoRoll() throws Exception {
+        String path = new File(dir, "c.log").getPath();
+        BucketFileWriter writer = open(path, 0, 0);
+        writer.append(EventBuilder.withBody("line", Charsets.UTF_8));
+        assertFalse(writer.shouldRoll());
+        writer.close();
+        writer.renameBucket(true);
+        assertEquals("line\n", read(path));
+    }
+
+    public void testRedoAfterParts() throws Exception {
+        String path = new File(dir, "f.log").getPath();
+        BucketFileWriter writer = open(path, 0, 1);
+        writer.append(EventBuilder.withBody("line0", Charsets.UTF_8));
+        writer.close();
+        writer.renamePart();
+        writer = open(path, 0, 1);
+        writer.append(EventBuilder.withBody("line1", Charsets.UTF_8));
+        writer.close();
+        writer.renameBucket(true);
+        assertEquals("line0\n", read(path + ".part-00000"));
+        assertEquals("line1\n", read(path + ".part-00001"));
+
+        // 文件重传时不接着旧的分段序号写入
+        writer = open(path, 0, 1);
+        writer.append(EventBuilder.withBody("again", Charsets.UTF_8));
+        writer.close();
+        writer.renameBucket(true);
+        assertEquals("again\n", read(path + ".redo"));
+        assertFalse(new File(path + ".part-00002").exists());
+    }
+
+    public void testPartIndexAfterArchive() throws Exception {
+        String path = new File(dir, "i.log").getPath();
+        BucketFileWriter writer = open(path, 0, 1);
+        writer.append(EventBuilder.withBody("line0", Charsets.UTF_8));
+        writer.close();
+        writer.renamePart();
+        // 已滚动的分段被归档移走, 下一段不从 0 重新编号
+        assertTrue(new File(path + ".part-00000").delete());
+        writer = open(path, 0, 1);
+        writer.append(EventBuilder.withBody("line1", Charsets.UTF_8));
+        writer.close();
+        writer.renamePart();
+        assertEquals("line1\n", read(path + ".part-00001"));
+
+        // 淘汰关闭后重新打开同样保持序号
+        assertTrue(new File(path + ".part-00001").delete());
+        writer = open(path, 0, 2);
+        writer.append(EventBuilder.withBody("line2", Charsets.UTF_8));
+        writer.close();
+        writer = open(path, 0, 2);
+        writer.append(EventBuilder.withBody("line3", Charsets.UTF_8));
+        writer.close();
+        writer.renameBucket(true);
+        assertEquals("line2\nline3\n", read(path + ".part-00002"));
+        assertFalse(new File(path + ".part-00000").exists());
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    public void testReopenCompressedCount() throws Exception {
+        String path = new File(dir, "g.log").getPath();
+        BucketFileWriter writer = new BucketFileWriter();
+        writer.setRollPolicy(10, 3);
+        writer.open(path, "TEXT", new Context(), 0, roller, sfWriters, CompressionCodec.GZIP);
+        writer.append(EventBuilder.withBody("12345", Charsets.UTF_8));
+        // 淘汰后重新打开, 继续按未压缩的字节数与 event 数滚动
+        writer.close();
+        assertTrue(new File(path + ".gz.tmp").length() > 10);
+
+        writer = new BucketFileWriter();
+        writer.setRollPolicy(10, 3);
+        writer.open(path, "TEXT", new Context(), 0, roller, sfWriters, CompressionCodec.GZIP);
+        assertFalse(writer.shouldRoll());
+        writer.append(EventBuilder.withBody("6789", Charsets.UTF_8));
+        assertFalse(writer.shouldRoll());
+        writer.append(EventBuilder.withBody("0", Charsets.UTF_8));
+        assertTrue(writer.shouldRoll());
+        writer.close();
+        writer.renameBucket(true);
+        assertTrue(new File(path + ".gz").exists());
+        // 计数文件随分段重命名删除
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    public void testReopenCompressedAfterCrash() throws Exception {
+        String path = new File(dir, "h.log").getPath();
+        // 正常关闭后重新打开, 追加新的 gzip member
+        BucketFileWriter writer = openGzip(path);
+        writer.append(EventBuilder.withBody("line1", Charsets.UTF_8));
+        writer.close();
+        writer = openGzip(path);
+        writer.append(EventBuilder.withBody("line2", Charsets.UTF_8));
+        writer.flush();
+
+        // 异常退出: 没有关闭, 压缩流没有尾部, 不再追加
+        BucketFileWriter recovered = openGzip(path);
+        recovered.append(EventBuilder.withBody("line3", Charsets.UTF_8));
+        recovered.close();
+        recovered.renameBucket(true);
+        assertEquals("line3\n", gunzip(path + ".gz"));
+        assertTrue(new File(path + ".uncompleted.gz").exists());
+        assertFalse(new File(path + ".gz.tmp").exists());
+    }
+
+    public void testForceOnClose() throws Exception {
+        String path = new File(dir, "d.log").getPath();
+        ForceCountingWriter writer = new ForceCountingWriter();
+        writer.setDurability(GroupCommitter.Durability.FDATASYNC);
+        writer.open(path, "TEXT", new Context(), 0, roller, sfWriters);
+        writer.append(EventBuilder.withBody("line", Charsets.UTF_8));
+        // 写入之后、组提交之前被定时 roll 或淘汰关闭
+        writer.close();
+        assertEquals(1, writer.forced);
+        // 组提交跳过已关闭的文件
+        writer.sync(false);
+        assertEquals(1, writer.forced);
+        writer.renameBucket(true);
+        assertEquals("line\n", read(path));
+
+        // 已落盘的文件关闭时不再 force
+        writer = new ForceCountingWriter();
+        writer.setDurability(GroupCommitter.Durability.FDATASYNC);
+        writer.open(path + ".2", "TEXT", new Context(), 0, roller, sfWriters);
+        writer.append(EventBuilder.withBody("line", Charsets.UTF_8));
+        writer.sync(false);
+        writer.close();
+        assertEquals(1, writer.forced);
+
+        // 压缩输出在组提交后关闭, 关闭时写入的尾部同样 force
+        writer = new ForceCountingWriter();
+        writer.setDurability(GroupCommitter.Durability.FSYNC);
+        writer.open(path + ".4", "TEXT", new Context(), 0, roller, sfWriters, CompressionCodec.GZIP);
+        writer.append(EventBuilder.withBody("line", Charsets.UTF_8));
+        writer.flush();
+        writer.sync(true);
+        assertEquals(1, writer.forced);
+        writer.close();
+        assertEquals(2, writer.forced);
+
+        // 未开启落盘时关闭不 force
+        writer = new ForceCountingWriter();
+        writer.open(path + ".3", "TEXT", new Context(), 0, roller, sfWriters);
+        writer.append(EventBuilder.withBody("line", Charsets.UTF_8));
+        writer.close();
+        assertEquals(0, writer.forced);
+    }
+
+    public void testAppendAfterClose() throws Exception {
+        String path = new File(dir, "e.log").getPath();
+        BucketFileWriter writer = open(path, 0, 0);
+        writer.append(EventBuilder.withBody("line", Charsets.UTF_8));
+        // 定时 roll 已关闭文件, 之后的写入不能丢失
+        writer.close();
+        try {
+            writer.append(EventBuilder.withBody("lost", Charsets.UTF_8));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            writer.appendBlock(0L, "lost".getBytes(Charsets.UTF_8));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        writer.renameBucket(true);
+        assertEquals("line\n", read(path));
+    }
+
+    private BucketFileWriter open(String path, long rollSize, long rollCount) throws Exception {
+        BucketFileWriter writer = new BucketFileWriter();
+        writer.setRollPolicy(rollSize, rollCount);
+        writer.open(path, "TEXT", new Context(), 0, roller, sfWriters);
+        return writer;
+    }
+
+    private BucketFileWriter openGzip(String path) throws Exception {
+        BucketFileWriter writer = new BucketFileWriter();
+        writer.open(path, "TEXT", new Context(), 0, roller, sfWriters, CompressionCodec.GZIP);
+        return writer;
+    }
+
+    private static String gunzip(String path) throws Exception {
+        InputStream in = new GZIPInputStream(new FileInputStream(path));
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String read(String path) throws Exception {
+        return Files.toString(new File(path), Charsets.UTF_8);
+    }
+
+    private static class ForceCountingWriter extends BucketFileWriter {
+        int forced;
+
+        @Override
+        protected void force(boolean metadata) throws IOException {
+            forced++;
+            super.force(metadata);
+        }
+    }
+
 }
\ No newline at end of file
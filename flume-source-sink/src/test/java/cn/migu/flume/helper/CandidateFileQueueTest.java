@@ -0,0 +1,84 @@
+package cn.migu.flume.helper;
+
+import cn.migu.flume.configuration.MGSpoolDirConfig.ConsumeOrder;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/9/22 16:40
+ * @Version: v1.0
+ */
+public class CandidateFileQueueTest extends TestCase {
+
+    private File spoolDir;
+    private File[] files;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        spoolDir = Files.createTempDir();
+
+        // c.log 最旧, b.log 与 a.log 修改时间相同
+        files = new File[]{createFile("b.log", 2000L), createFile("c.log", 1000L),
+                createFile("a.log", 2000L), new File(spoolDir, "dir")};
+        files[3].mkdir();
+    }
+
+    public void tearDown() throws Exception {
+        for (File f : spoolDir.listFiles()) {
+            f.delete();
+        }
+        spoolDir.delete();
+    }
+
+    public void testOldest() throws Exception {
+        assertOrder(CandidateFileQueue.of(files, ConsumeOrder.OLDEST), "c.log", "a.log", "b.log");
+    }
+
+    public void testYoungest() throws Exception {
+        assertOrder(CandidateFileQueue.of(files, ConsumeOrder.YOUNGEST), "a.log", "b.log", "c.log");
+    }
+
+    public void testName() throws Exception {
+        assertOrder(CandidateFileQueue.of(files, ConsumeOrder.NAME), "a.log", "b.log", "c.log");
+    }
+
+    public void testRandom() throws Exception {
+        assertOrder(CandidateFileQueue.of(files, ConsumeOrder.RANDOM), "b.log", "c.log", "a.log");
+    }
+
+    public void testEmpty() throws Exception {
+        CandidateFileQueue queue = CandidateFileQueue.of(null, ConsumeOrder.OLDEST);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        assertNull(queue.poll());
+    }
+
+    public void testPeek() throws Exception {
+        CandidateFileQueue queue = CandidateFileQueue.of(files, ConsumeOrder.OLDEST);
+        assertEquals("c.log", queue.peek().getName());
+        assertEquals("c.log", queue.poll().getName());
+        assertEquals("a.log", queue.peek().getName());
+    }
+
+    private void assertOrder(CandidateFileQueue queue, String... names) {
+        for (String name : names) {
+            assertEquals(name, queue.poll().getName());
+        }
+        assertNull(queue.poll());
+    }
+
+    private File createFile(String name, long lastModified) throws Exception {
+        File file = new File(spoolDir, name);
+        Files.write(name, file, Charsets.UTF_8);
+        file.setLastModified(lastModified);
+        return file;
+    }
+
+}
@@ -0,0 +1,82 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/18 10:10
+ * @Version: v1.0
+ */
+public class CompressionCodecTest extends TestCase {
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+    }
+
+    public void tearDown() throws Exception {
+
+    }
+
+    public void testNone() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertSame(out, CompressionCodec.NONE.wrap(out));
+        assertEquals("", CompressionCodec.NONE.getExtension());
+    }
+
+    public void testGzipAppend() throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+
+        // 两次打开追加写入, 得到两个 gzip member
+        OutputStream first = CompressionCodec.GZIP.wrap(file);
+        first.write("line1\n".getBytes(Charsets.UTF_8));
+        first.close();
+        OutputStream second = CompressionCodec.GZIP.wrap(file);
+        second.write("line2\n".getBytes(Charsets.UTF_8));
+        second.close();
+
+        assertEquals("line1\nline2\n", gunzip(file.toByteArray()));
+    }
+
+    public void testGzipFlush() throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        OutputStream out = CompressionCodec.GZIP.wrap(file);
+        out.write("line1\n".getBytes(Charsets.UTF_8));
+        out.flush();
+
+        // 未 close 时已 flush 的数据可以解压
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(file.toByteArray()));
+        byte[] line = new byte[6];
+        ByteStreams.readFully(in, line);
+        assertEquals("line1\n", new String(line, Charsets.UTF_8));
+    }
+
+    public void testUnavailableCodec() throws Exception {
+        try {
+            Class.forName("com.github.luben.zstd.ZstdOutputStream");
+        } catch (ClassNotFoundException e) {
+            try {
+                CompressionCodec.ZSTD.checkAvailable();
+                fail();
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    private static String gunzip(byte[] data) throws Exception {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    }
+
+}
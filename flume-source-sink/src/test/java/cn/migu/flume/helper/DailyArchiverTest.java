@@ -0,0 +1,169 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/19 14:30
+ * @Version: v1.0
+ */
+public class DailyArchiverTest extends TestCase {
+
+    private File sourceDir;
+    private File archiveDir;
+    private long yesterday;
+    private long cutoff;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        sourceDir = Files.createTempDir();
+        archiveDir = Files.createTempDir();
+        DateTime today = new DateTime().withTimeAtStartOfDay();
+        cutoff = today.getMillis();
+        yesterday = today.minusHours(12).getMillis();
+
+        write("host1", "a.log", yesterday);
+        write("host1", "b.log.gz", yesterday);
+        write("host2", "c.log", yesterday);
+        // 今天的文件与正在写入的文件不归档
+        write("host2", "d.log", System.currentTimeMillis());
+        write("host2", "e.log.tmp", yesterday);
+    }
+
+    public void tearDown() throws Exception {
+        delete(sourceDir);
+        delete(archiveDir);
+    }
+
+    public void testArchive() throws Exception {
+        DailyArchiver archiver = new DailyArchiver(sourceDir, archiveDir, 2,
+                DailyArchiver.RetainMode.KEEP);
+        assertEquals(3, archiver.archive(cutoff));
+
+        File dayDir = new File(archiveDir, new DateTime(yesterday).toString("yyyyMMdd"));
+        assertEquals(Lists.newArrayList("a.log", "b.log.gz"), entries(archive(dayDir, "host1")));
+        assertEquals(Lists.newArrayList("c.log"), entries(archive(dayDir, "host2")));
+
+        // 增量: 已归档的文件不再处理
+        assertEquals(0, archiver.archive(cutoff));
+        write("host1", "f.log", yesterday);
+        assertEquals(1, archiver.archive(cutoff));
+        assertEquals(2, dayDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("host1-");
+            }
+        }).length);
+    }
+
+    public void testDelete() throws Exception {
+        new DailyArchiver(sourceDir, archiveDir, 1, DailyArchiver.RetainMode.DELETE).archive(cutoff);
+        assertFalse(new File(sourceDir, "host1/a.log").exists());
+        assertTrue(new File(sourceDir, "host2/d.log").exists());
+        assertTrue(new File(sourceDir, "host2/e.log.tmp").exists());
+    }
+
+    public void testMoveSameName() throws Exception {
+        DailyArchiver archiver = new DailyArchiver(sourceDir, archiveDir, 1,
+                DailyArchiver.RetainMode.MOVE);
+        assertEquals(3, archiver.archive(cutoff));
+        // 同一天重传的同名文件再次归档, 不覆盖之前移动的文件
+        File file = new File(sourceDir, "host1/a.log");
+        Files.write("again", file, Charsets.UTF_8);
+        file.setLastModified(yesterday + 1000L);
+        assertEquals(1, archiver.archive(cutoff));
+
+        File moved = new File(new File(archiveDir, new DateTime(yesterday).toString("yyyyMMdd")), "files/host1");
+        assertEquals("a.log", Files.toString(new File(moved, "a.log"), Charsets.UTF_8));
+        assertEquals("again", Files.toString(new File(moved, "a.log.redo"), Charsets.UTF_8));
+        assertFalse(file.exists());
+    }
+
+    public void testSkipInUseParts() throws Exception {
+        // 仍在传输的文件: 已滚动的分段、隐藏的计数文件都不归档
+        write("host1", "g.log.part-00000", yesterday);
+        write("host1", "g.log.part-00001.uncompleted", yesterday);
+        write("host1", "g.log.tmp", yesterday);
+        write("host1", ".g.log.tmp.count", yesterday);
+        write("host1", "h.log.part-00000.gz", yesterday);
+        write("host1", "h.log.gz.tmp", yesterday);
+        // 传输结束的分段正常归档
+        write("host2", "i.log.part-00000", yesterday);
+        write("host2", "i.log.part-00001", yesterday);
+
+        DailyArchiver archiver = new DailyArchiver(sourceDir, archiveDir, 1,
+                DailyArchiver.RetainMode.DELETE);
+        assertEquals(5, archiver.archive(cutoff));
+        File dayDir = new File(archiveDir, new DateTime(yesterday).toString("yyyyMMdd"));
+        assertEquals(Lists.newArrayList("a.log", "b.log.gz"), entries(archive(dayDir, "host1")));
+        assertEquals(Lists.newArrayList("c.log", "i.log.part-00000", "i.log.part-00001"),
+                entries(archive(dayDir, "host2")));
+        assertTrue(new File(sourceDir, "host1/g.log.part-00000").exists());
+        assertTrue(new File(sourceDir, "host1/g.log.part-00001.uncompleted").exists());
+        assertTrue(new File(sourceDir, "host1/.g.log.tmp.count").exists());
+        assertTrue(new File(sourceDir, "host1/h.log.part-00000.gz").exists());
+
+        // 传输结束后下一次执行归档
+        assertTrue(new File(sourceDir, "host1/g.log.tmp").delete());
+        assertEquals(2, archiver.archive(cutoff));
+    }
+
+    private void write(String host, String name, long modified) throws Exception {
+        File file = new File(new File(sourceDir, host), name);
+        Files.createParentDirs(file);
+        Files.write(name, file, Charsets.UTF_8);
+        file.setLastModified(modified);
+    }
+
+    private static File archive(File dayDir, final String host) {
+        File[] files = dayDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(host + "-") && name.endsWith(".zip");
+            }
+        });
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static List<String> entries(File zip) throws Exception {
+        List<String> names = Lists.newArrayList();
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        } finally {
+            zipFile.close();
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,95 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/9/20 15:10
+ * @Version: v1.0
+ */
+public class DirectoryWatcherTest extends TestCase {
+
+    private static final FileFilter ACCEPT_ALL = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return true;
+        }
+    };
+
+    private File spoolDir;
+    private File trackerDir;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        spoolDir = Files.createTempDir();
+        trackerDir = Files.createTempDir();
+    }
+
+    public void tearDown() throws Exception {
+        for (File dir : new File[]{spoolDir, trackerDir}) {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public void testReconcileOnStart() throws Exception {
+        Files.write("a\n", new File(spoolDir, "a.log"), Charsets.UTF_8);
+        Files.write("b\n", new File(spoolDir, ".hidden"), Charsets.UTF_8);
+
+        DoneFileRegistry registry = new DoneFileRegistry(new File(trackerDir, ".done-files.meta"), 0, 0L);
+        DirectoryWatcher watcher = new DirectoryWatcher(spoolDir, registry, 0L,
+                TimeUnit.HOURS.toMillis(1), new DirectoryWatcher.Listener() {
+            @Override
+            public void onFilesReady() {
+            }
+        });
+        watcher.start();
+        try {
+            File[] files = watcher.listFiles(ACCEPT_ALL);
+            assertEquals(1, files.length);
+            assertEquals("a.log", files[0].getName());
+
+            // 已采集文件不再作为候选文件
+            registry.record("a.log");
+            assertEquals(0, watcher.listFiles(ACCEPT_ALL).length);
+        } finally {
+            watcher.close();
+        }
+    }
+
+    public void testNotifyNewFile() throws Exception {
+        DoneFileRegistry registry = new DoneFileRegistry(new File(trackerDir, ".done-files.meta"), 0, 0L);
+        final CountDownLatch ready = new CountDownLatch(1);
+        DirectoryWatcher watcher = new DirectoryWatcher(spoolDir, registry, 0L,
+                TimeUnit.HOURS.toMillis(1), new DirectoryWatcher.Listener() {
+            @Override
+            public void onFilesReady() {
+                ready.countDown();
+            }
+        });
+        watcher.start();
+        try {
+            Files.write("c\n", new File(spoolDir, "c.log"), Charsets.UTF_8);
+            assertTrue(ready.await(30, TimeUnit.SECONDS));
+
+            File[] files = watcher.listFiles(ACCEPT_ALL);
+            assertEquals(1, files.length);
+            assertEquals("c.log", files[0].getName());
+        } finally {
+            watcher.close();
+        }
+    }
+
+}
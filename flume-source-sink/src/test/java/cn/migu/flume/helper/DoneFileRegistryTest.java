@@ -0,0 +1,87 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/9/12 10:20
+ * @Version: v1.0
+ */
+public class DoneFileRegistryTest extends TestCase {
+
+    private File trackerDir;
+    private File journal;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        trackerDir = Files.createTempDir();
+        journal = new File(trackerDir, ".done-files.meta");
+    }
+
+    public void tearDown() throws Exception {
+        for (File f : trackerDir.listFiles()) {
+            f.delete();
+        }
+        trackerDir.delete();
+    }
+
+    public void testRecordAndContains() throws Exception {
+        DoneFileRegistry registry = new DoneFileRegistry(journal, 0, 0L);
+        registry.load();
+        assertFalse(registry.contains("a.log"));
+
+        registry.record("a.log");
+        assertTrue(registry.contains("a.log"));
+        assertFalse(registry.contains("b.log"));
+        assertEquals(1, registry.size());
+    }
+
+    public void testLoadLegacyJournal() throws Exception {
+        Files.write("2016-08-01 03:00:00\ta.log\n2016-08-01 03:00:01\tb.log\n",
+                journal, Charsets.UTF_8);
+
+        DoneFileRegistry registry = new DoneFileRegistry(journal, 0, 0L);
+        registry.load();
+        assertTrue(registry.contains("a.log"));
+        assertTrue(registry.contains("b.log"));
+        assertEquals(2, registry.size());
+    }
+
+    public void testCompactAndReload() throws Exception {
+        DoneFileRegistry registry = new DoneFileRegistry(journal, 3, 0L);
+        registry.load();
+        for (int i = 0; i < 3000; i++) {
+            registry.record("file-" + i + ".log");
+            registry.maybeCompact();
+        }
+        assertTrue(journal.length() < 3 * 64);
+
+        DoneFileRegistry reloaded = new DoneFileRegistry(journal, 3, 0L);
+        reloaded.load();
+        assertEquals(3000, reloaded.size());
+        for (int i = 0; i < 3000; i++) {
+            assertTrue(reloaded.contains("file-" + i + ".log"));
+        }
+        assertFalse(reloaded.contains("file-3000.log"));
+    }
+
+    public void testCompactKeepsRecentEntries() throws Exception {
+        DoneFileRegistry registry = new DoneFileRegistry(journal, 0, TimeUnit.DAYS.toMillis(1));
+        registry.load();
+        registry.record("a.log");
+
+        // 未过期的记录压缩后仍然保留
+        registry.compact(true);
+        assertTrue(registry.contains("a.log"));
+        assertEquals(0, journal.length());
+    }
+
+}
@@ -0,0 +1,110 @@
+package cn.migu.flume.helper;
+
+import cn.migu.flume.configuration.MGSpoolDirConfig.FileIdentityMode;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/25 15:00
+ * @Version: v1.0
+ */
+public class FileIdentityResolverTest extends TestCase {
+
+    private File dir;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDir();
+    }
+
+    public void tearDown() throws Exception {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testName() throws Exception {
+        FileIdentityResolver resolver = new FileIdentityResolver(FileIdentityMode.NAME, 4096);
+        // 文件名模式不访问文件
+        assertEquals("a.log", resolver.identify(new File(dir, "a.log")));
+    }
+
+    public void testRename() throws Exception {
+        FileIdentityResolver resolver = new FileIdentityResolver(FileIdentityMode.INODE, 4096);
+        File file = write("a.log", "line1\nline2\n");
+        String identity = resolver.identify(file);
+        assertEquals(identity, resolver.identify(file));
+
+        File renamed = new File(dir, "a.log.1");
+        assertTrue(file.renameTo(renamed));
+        assertEquals(identity, resolver.identify(renamed));
+    }
+
+    public void testReusedName() throws Exception {
+        FileIdentityResolver resolver = new FileIdentityResolver(FileIdentityMode.INODE, 4096);
+        File file = write("a.log", "line1\n");
+        String identity = resolver.identify(file);
+
+        assertTrue(file.delete());
+        write("a.log", "other\n");
+        assertFalse(identity.equals(resolver.identify(file)));
+    }
+
+    public void testFingerprintBytes() throws Exception {
+        FileIdentityResolver resolver = new FileIdentityResolver(FileIdentityMode.INODE, 4);
+        File file = write("a.log", "line1\n");
+        String identity = resolver.identify(file);
+
+        // 只有文件头参与指纹, 追加内容标识不变
+        Files.append("line2\n", file, Charsets.UTF_8);
+        file.setLastModified(file.lastModified() + 2000);
+        assertEquals(identity, resolver.identify(file));
+    }
+
+    public void testHeadCheck() throws Exception {
+        FileIdentityResolver resolver = new FileIdentityResolver(FileIdentityMode.INODE, 8);
+        File file = write("a.log", "line1\n");
+        long head = resolver.headCheck(file);
+        assertTrue(resolver.matchesHead(file, 0L));
+
+        // 追加写入后已记录的文件头不变
+        Files.append("line2\n", file, Charsets.UTF_8);
+        assertTrue(resolver.matchesHead(file, head));
+        // 记录的文件头最长为 fingerprintBytes
+        assertEquals(8, (int) resolver.headCheck(file));
+
+        // 截断或重写
+        write("a.log", "line");
+        assertFalse(resolver.matchesHead(file, head));
+        write("a.log", "other1\nother2\n");
+        assertFalse(resolver.matchesHead(file, head));
+    }
+
+    public void testMissingFile() throws Exception {
+        FileIdentityResolver resolver = new FileIdentityResolver(FileIdentityMode.INODE, 4096);
+        try {
+            resolver.identify(new File(dir, "missing.log"));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private File write(String name, String content) throws Exception {
+        File file = new File(dir, name);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
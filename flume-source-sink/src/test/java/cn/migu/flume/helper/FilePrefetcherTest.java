@@ -0,0 +1,51 @@
+package cn.migu.flume.helper;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/27 10:30
+ * @Version: v1.0
+ */
+public class FilePrefetcherTest extends TestCase {
+
+    private File file;
+    private FilePrefetcher prefetcher;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("prefetch", ".log");
+        Files.write(new byte[1024 * 1024], file);
+        prefetcher = new FilePrefetcher(300 * 1024);
+    }
+
+    public void tearDown() throws Exception {
+        prefetcher.close();
+        file.delete();
+    }
+
+    public void testBudget() throws Exception {
+        prefetcher.prefetch(file, 100 * 1024);
+        prefetcher.await();
+        assertEquals(300 * 1024, prefetcher.getPrefetchedBytes());
+    }
+
+    public void testEndOfFile() throws Exception {
+        // 剩余内容小于预读上限
+        prefetcher.prefetch(file, 1000 * 1024);
+        prefetcher.await();
+        assertEquals(24 * 1024, prefetcher.getPrefetchedBytes());
+    }
+
+    public void testMissingFile() throws Exception {
+        prefetcher.prefetch(new File(file.getPath() + ".missing"), 0L);
+        prefetcher.await();
+        assertEquals(0, prefetcher.getPrefetchedBytes());
+    }
+}
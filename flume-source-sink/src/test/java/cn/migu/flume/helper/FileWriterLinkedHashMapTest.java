@@ -21,7 +21,61 @@ public class FileWriterLinkedHashMapTest extends TestCase {
     }
 
     public void testRemoveEldestEntry() throws Exception {
+        FileWriterLinkedHashMap writers = new FileWriterLinkedHashMap(2);
+        ClosingWriter a = new ClosingWriter();
+        writers.put("a", a);
+        writers.put("b", new ClosingWriter());
+        // 访问 a 后淘汰 b
+        assertSame(a, writers.get("a"));
+        writers.put("c", new ClosingWriter());
 
+        assertEquals(2, writers.size());
+        assertTrue(writers.containsKey("a"));
+        assertFalse(writers.containsKey("b"));
+        assertEquals(1, writers.getEvictionCount());
+
+        // 淘汰 a, 重新打开 a/b 计入 reopen
+        writers.put("d", new ClosingWriter());
+        assertNull(writers.get("b"));
+        assertNull(writers.get("a"));
+        assertTrue(a.closed);
+        assertEquals(2, writers.getReopenCount());
+        assertEquals(1, writers.getHitCount());
+        writers.shutdown();
+    }
+
+    public void testAwaitClose() throws Exception {
+        FileWriterLinkedHashMap writers = new FileWriterLinkedHashMap(1);
+        ClosingWriter a = new ClosingWriter();
+        a.closeDelay = 200L;
+        writers.put("a", a);
+        writers.put("b", new ClosingWriter());
+
+        assertNull(writers.get("a"));
+        assertTrue(a.closed);
+        writers.shutdown();
+    }
+
+    public void testRemoveIfSame() throws Exception {
+        FileWriterLinkedHashMap writers = new FileWriterLinkedHashMap(2);
+        ClosingWriter a = new ClosingWriter();
+        writers.put("a", a);
+
+        assertFalse(writers.remove("a", new ClosingWriter()));
+        assertTrue(writers.remove("a", a));
+        assertEquals(0, writers.size());
+        writers.shutdown();
+    }
+
+    private static class ClosingWriter extends BucketFileWriter {
+        private volatile boolean closed;
+        private long closeDelay;
+
+        @Override
+        public synchronized void close() throws InterruptedException {
+            Thread.sleep(closeDelay);
+            closed = true;
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+package cn.migu.flume.helper;
+
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/17 09:40
+ * @Version: v1.0
+ */
+public class GroupCommitterTest extends TestCase {
+
+    private GroupCommitter committer;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        committer = new GroupCommitter("test-commit-%d", GroupCommitter.Durability.FDATASYNC,
+                200L, Long.MAX_VALUE);
+    }
+
+    public void tearDown() throws Exception {
+        committer.close();
+    }
+
+    public void testCoalesce() throws Exception {
+        final CountingWriter shared = new CountingWriter();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    committer.sync(Collections.<BucketFileWriter>singletonList(shared), 10L);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // 窗口内的请求合并为一次 force
+        assertEquals(1, shared.synced.get());
+        assertFalse(shared.metadata);
+    }
+
+    public void testBytesWindow() throws Exception {
+        committer.close();
+        committer = new GroupCommitter("test-commit-%d", GroupCommitter.Durability.FSYNC,
+                60000L, 100L);
+        CountingWriter writer = new CountingWriter();
+        long start = System.currentTimeMillis();
+        committer.sync(Collections.<BucketFileWriter>singletonList(writer), 100L);
+
+        // 字节数达到阈值不等待时间窗口
+        assertTrue(System.currentTimeMillis() - start < 10000L);
+        assertEquals(1, writer.synced.get());
+        assertTrue(writer.metadata);
+    }
+
+    public void testFailure() throws Exception {
+        CountingWriter writer = new CountingWriter();
+        writer.fail = true;
+        try {
+            committer.sync(Collections.<BucketFileWriter>singletonList(writer), 10L);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        writer.fail = false;
+        committer.sync(Collections.<BucketFileWriter>singletonList(writer), 10L);
+        assertEquals(2, writer.synced.get());
+    }
+
+    private static class CountingWriter extends BucketFileWriter {
+        private final AtomicInteger synced = new AtomicInteger();
+        private volatile boolean metadata;
+        private volatile boolean fail;
+
+        @Override
+        public void sync(boolean metadata) throws IOException {
+            this.metadata = metadata;
+            synced.incrementAndGet();
+            if (fail) {
+                throw new IOException("disk error");
+            }
+        }
+    }
+
+}
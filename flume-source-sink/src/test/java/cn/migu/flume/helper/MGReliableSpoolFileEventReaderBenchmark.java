@@ -0,0 +1,107 @@
+package cn.migu.flume.helper;
+
+import cn.migu.flume.configuration.MGSpoolDirConfig;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import org.apache.flume.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: MGReliableSpoolFileEventReader.readEvents(1000) 基准, 开启文件路径与文件名 header
+ * 执行: mvn test-compile 后
+ * java -cp target/test-classes:target/classes:<依赖> org.openjdk.jmh.Main MGReliableSpoolFileEventReaderBenchmark -prof gc
+ * -prof gc 输出每个 event 的分配字节数 (gc.alloc.rate.norm)
+ * @Author: ChenYao
+ * @Date: 2016/10/28 11:00
+ * @Version: v1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MGReliableSpoolFileEventReaderBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int LINES = 200 * BATCH_SIZE;
+
+    private File directory;
+    private MGReliableSpoolFileEventReader reader;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDir();
+        BufferedWriter writer = Files.newWriter(new File(directory, "bench.log"), Charsets.UTF_8);
+        try {
+            String line = Strings.repeat("x", 100);
+            for (int i = 0; i < LINES; i++) {
+                writer.write(line);
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        openReader();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+        delete(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<Event> readEvents() throws IOException {
+        List<Event> events = reader.readEvents(BATCH_SIZE);
+        reader.commit();
+        if (events.size() < BATCH_SIZE) {
+            // 文件读完, 清除读取记录后从头读取
+            reader.close();
+            openReader();
+        }
+        return events;
+    }
+
+    private void openReader() throws IOException {
+        delete(new File(directory, MGSpoolDirConfig.DEFAULT_TRACKER_DIR));
+        reader = new MGReliableSpoolFileEventReader.Builder()
+                .spoolDirectory(directory)
+                .deserializerType(MGSpoolDirConfig.MMAP_LINE_DESERIALIZER)
+                .annotateFileName(true)
+                .annotateBaseName(true)
+                .prefetchBytes(0)
+                .build();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
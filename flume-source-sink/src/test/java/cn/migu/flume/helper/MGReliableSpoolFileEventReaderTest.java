@@ -1,6 +1,14 @@
 package cn.migu.flume.helper;
 
+import cn.migu.flume.configuration.MGSpoolDirConfig;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import junit.framework.TestCase;
+import org.apache.flume.Event;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * All rights Reserved, Designed by Migu.cn
@@ -11,13 +19,16 @@ import junit.framework.TestCase;
  * @Version: v1.0
  */
 public class MGReliableSpoolFileEventReaderTest extends TestCase {
+
+    private File dir;
+
     public void setUp() throws Exception {
         super.setUp();
-
+        dir = Files.createTempDir();
     }
 
     public void tearDown() throws Exception {
-
+        delete(dir);
     }
 
     public void testGetLastFileRead() throws Exception {
@@ -40,4 +51,197 @@ public class MGReliableSpoolFileEventReaderTest extends TestCase {
 
     }
 
+    public void testTailFiles() throws Exception {
+        File file = new File(dir, "a.log");
+        Files.write("a\nb\npart", file, Charsets.UTF_8);
+        MGReliableSpoolFileEventReader reader = new MGReliableSpoolFileEventReader.Builder()
+                .spoolDirectory(dir)
+                .deserializerType(MGSpoolDirConfig.MMAP_LINE_DESERIALIZER)
+                .tailFiles(true)
+                .tailQuietMillis(TimeUnit.MINUTES.toMillis(1))
+                .build();
+
+        // 末尾不完整的行暂不读取
+        assertEquals("[a, b]", bodies(reader.readEvents(10)));
+        reader.commit();
+        // 文件仍在写入, 本次采集结束, 不发送完成标记
+        assertTrue(reader.readEvents(10).isEmpty());
+
+        // 下次采集只读取新增内容
+        Files.append("ial\nc\nd", file, Charsets.UTF_8);
+        file.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+        assertEquals("[partial, c]", bodies(reader.readEvents(10)));
+        reader.commit();
+        // 文件已静默, 读取末尾不完整的行后发送完成标记
+        assertEquals("[d]", bodies(reader.readEvents(10)));
+        reader.commit();
+        List<Event> done = reader.readEvents(10);
+        assertEquals(1, done.size());
+        assertEquals("true", done.get(0).getHeaders().get(MGSpoolDirConfig.FILE_DONE_DEFAULT_DEFAULT));
+
+        assertTrue(reader.readEvents(10).isEmpty());
+        reader.close();
+    }
+
+    public void testTailFilesInode() throws Exception {
+        File file = new File(dir, "a.log");
+        // 小于 fingerprintBytes, 文件增长时指纹变化
+        Files.write("a\nb\npart", file, Charsets.UTF_8);
+        MGReliableSpoolFileEventReader reader = tailReader();
+        assertEquals("[a, b]", bodies(reader.readEvents(10)));
+        reader.commit();
+        assertTrue(reader.readEvents(10).isEmpty());
+        reader.close();
+
+        // 重启后继续读取新增内容, 不从头重新读取
+        Files.append("ial\nc\n", file, Charsets.UTF_8);
+        file.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+        reader = tailReader();
+        assertEquals("[partial, c]", bodies(reader.readEvents(10)));
+        reader.commit();
+        List<Event> done = reader.readEvents(10);
+        assertEquals(1, done.size());
+        assertEquals("true", done.get(0).getHeaders().get(MGSpoolDirConfig.FILE_DONE_DEFAULT_DEFAULT));
+        reader.commit();
+        assertTrue(reader.readEvents(10).isEmpty());
+        reader.close();
+
+        // 采集完成后按最终内容登记, 重启后不再采集
+        reader = tailReader();
+        assertTrue(reader.readEvents(10).isEmpty());
+        reader.close();
+    }
+
+    public void testTailFilesTruncated() throws Exception {
+        File file = new File(dir, "a.log");
+        Files.write("line1\nline2\n", file, Charsets.UTF_8);
+        MGReliableSpoolFileEventReader reader = tailReader();
+        assertEquals("[line1, line2]", bodies(reader.readEvents(10)));
+        reader.commit();
+        assertTrue(reader.readEvents(10).isEmpty());
+
+        // 暂停期间被截断 (copytruncate), 从头读取截断后的内容
+        Files.write("x\n", file, Charsets.UTF_8);
+        file.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+        assertEquals("[x]", bodies(reader.readEvents(10)));
+        reader.commit();
+        List<Event> done = reader.readEvents(10);
+        assertEquals(1, done.size());
+        assertEquals("false", done.get(0).getHeaders().get(MGSpoolDirConfig.FILE_DONE_DEFAULT_DEFAULT));
+        reader.close();
+    }
+
+    public void testTailFilesReplaced() throws Exception {
+        File file = new File(dir, "a.log");
+        Files.write("a\nb\n", file, Charsets.UTF_8);
+        MGReliableSpoolFileEventReader reader = tailReader();
+        assertEquals("[a, b]", bodies(reader.readEvents(10)));
+        reader.commit();
+        assertTrue(reader.readEvents(10).isEmpty());
+        reader.close();
+
+        // 同一 inode 写入新的内容 (与 inode 被新文件复用相同), 文件头不一致时从头读取
+        Files.write("new1\nnew2\n", file, Charsets.UTF_8);
+        file.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+        reader = tailReader();
+        assertEquals("[new1, new2]", bodies(reader.readEvents(10)));
+        reader.close();
+    }
+
+    public void testPruneTailPositions() throws Exception {
+        File file = new File(dir, "a.log");
+        Files.write("a\nb\n", file, Charsets.UTF_8);
+        PositionTrackerStore store = new PositionTrackerStore(new File(dir, "positions.log"), 0);
+        MGReliableSpoolFileEventReader reader = new MGReliableSpoolFileEventReader.Builder()
+                .spoolDirectory(dir)
+                .ignorePattern("^positions\\.log$")
+                .deserializerType(MGSpoolDirConfig.MMAP_LINE_DESERIALIZER)
+                .fileIdentity(MGSpoolDirConfig.FileIdentityMode.INODE)
+                .tailFiles(true)
+                .tailQuietMillis(TimeUnit.MINUTES.toMillis(1))
+                .positionStore(store)
+                .build();
+        assertEquals("[a, b]", bodies(reader.readEvents(10)));
+        reader.commit();
+        assertTrue(reader.readEvents(10).isEmpty());
+        // 读取位置与文件头
+        assertEquals(2, store.size());
+
+        reader.pruneTailPositions();
+        assertEquals(2, store.size());
+
+        // 暂停期间被删除, 清理读取位置
+        assertTrue(file.delete());
+        reader.pruneTailPositions();
+        assertEquals(0, store.size());
+        reader.close();
+        store.close();
+    }
+
+    public void testReusedNameAfterIdentitySwitch() throws Exception {
+        File a = new File(dir, "a.log");
+        File b = new File(dir, "b.log");
+        Files.write("a1\n", a, Charsets.UTF_8);
+        Files.write("b1\n", b, Charsets.UTF_8);
+        long old = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10);
+        a.setLastModified(old);
+        b.setLastModified(old);
+        // 按文件名登记
+        MGReliableSpoolFileEventReader reader = new MGReliableSpoolFileEventReader.Builder()
+                .spoolDirectory(dir)
+                .deserializerType(MGSpoolDirConfig.MMAP_LINE_DESERIALIZER)
+                .build();
+        while (!reader.readEvents(10).isEmpty()) {
+            reader.commit();
+        }
+        reader.close();
+
+        reader = new MGReliableSpoolFileEventReader.Builder()
+                .spoolDirectory(dir)
+                .deserializerType(MGSpoolDirConfig.MMAP_LINE_DESERIALIZER)
+                .fileIdentity(MGSpoolDirConfig.FileIdentityMode.INODE)
+                .build();
+        // 切换后复用文件名的新文件需要采集, 切换前已采集的文件不重复采集
+        assertTrue(a.delete());
+        Files.write("a2\n", a, Charsets.UTF_8);
+        a.setLastModified(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(2));
+        assertEquals("[a2]", bodies(reader.readEvents(10)));
+        reader.commit();
+        assertEquals(1, reader.readEvents(10).size());
+        reader.commit();
+        assertTrue(reader.readEvents(10).isEmpty());
+        reader.close();
+    }
+
+    private MGReliableSpoolFileEventReader tailReader() throws Exception {
+        return new MGReliableSpoolFileEventReader.Builder()
+                .spoolDirectory(dir)
+                .deserializerType(MGSpoolDirConfig.MMAP_LINE_DESERIALIZER)
+                .fileIdentity(MGSpoolDirConfig.FileIdentityMode.INODE)
+                .tailFiles(true)
+                .tailQuietMillis(TimeUnit.MINUTES.toMillis(1))
+                .build();
+    }
+
+    private static String bodies(List<Event> events) {
+        StringBuilder builder = new StringBuilder("[");
+        for (Event event : events) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(new String(event.getBody(), Charsets.UTF_8));
+        }
+        return builder.append(']').toString();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
 }
\ No newline at end of file
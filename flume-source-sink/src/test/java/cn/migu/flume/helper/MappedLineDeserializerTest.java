@@ -0,0 +1,102 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/9/26 14:30
+ * @Version: v1.0
+ */
+public class MappedLineDeserializerTest extends TestCase {
+
+    private File file;
+    private MemoryPositionTracker tracker;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("mapped", ".log");
+        tracker = new MemoryPositionTracker();
+    }
+
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testReadEvents() throws Exception {
+        Files.write("line1\n\nline3\nlast", file, Charsets.UTF_8);
+        MappedLineDeserializer des = new MappedLineDeserializer(file, tracker, new Context());
+
+        List<Event> events = des.readEvents(10);
+        assertEquals(4, events.size());
+        assertEquals("line1", body(events.get(0)));
+        assertEquals("", body(events.get(1)));
+        assertEquals("line3", body(events.get(2)));
+        assertEquals("last", body(events.get(3)));
+        assertTrue(des.readEvents(10).isEmpty());
+        des.close();
+    }
+
+    public void testHoldPartialLine() throws Exception {
+        Files.write("line1\nlast", file, Charsets.UTF_8);
+        MappedLineDeserializer des = new MappedLineDeserializer(file, tracker, new Context());
+        des.setHoldPartialLine(true);
+
+        List<Event> events = des.readEvents(10);
+        assertEquals(1, events.size());
+        assertEquals("line1", body(events.get(0)));
+        assertTrue(des.readEvents(10).isEmpty());
+
+        assertTrue(des.releasePartialLine());
+        assertEquals("last", body(des.readEvent()));
+        assertFalse(des.releasePartialLine());
+        des.close();
+    }
+
+    public void testMarkAndReset() throws Exception {
+        Files.write("a\nb\nc\n", file, Charsets.UTF_8);
+        MappedLineDeserializer des = new MappedLineDeserializer(file, tracker, new Context());
+
+        assertEquals("a", body(des.readEvent()));
+        des.mark();
+        assertEquals(2, tracker.getPosition());
+
+        assertEquals("b", body(des.readEvent()));
+        des.reset();
+        assertEquals("b", body(des.readEvent()));
+        des.close();
+
+        // 从 tracker 记录的位置继续读取
+        MappedLineDeserializer resumed = new MappedLineDeserializer(file, tracker, new Context());
+        assertEquals("b", body(resumed.readEvent()));
+        resumed.close();
+    }
+
+    public void testTruncateLongLine() throws Exception {
+        Files.write("abcdef\ng\n", file, Charsets.UTF_8);
+        Context context = new Context();
+        context.put("maxLineLength", "4");
+        MappedLineDeserializer des = new MappedLineDeserializer(file, tracker, context);
+
+        List<Event> events = des.readEvents(10);
+        assertEquals(3, events.size());
+        assertEquals("abcd", body(events.get(0)));
+        assertEquals("ef", body(events.get(1)));
+        assertEquals("g", body(events.get(2)));
+        des.close();
+    }
+
+    private static String body(Event event) {
+        return new String(event.getBody(), Charsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,43 @@
+package cn.migu.flume.helper;
+
+import org.apache.flume.serialization.PositionTracker;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description: 只保存在内存中的读取位置, 用于 deserializer 测试
+ * @Author: ChenYao
+ * @Date: 2016/10/20 10:00
+ * @Version: v1.0
+ */
+class MemoryPositionTracker implements PositionTracker {
+
+    private long position;
+
+    MemoryPositionTracker() {
+        this(0L);
+    }
+
+    MemoryPositionTracker(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public void storePosition(long position) {
+        this.position = position;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public String getTarget() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
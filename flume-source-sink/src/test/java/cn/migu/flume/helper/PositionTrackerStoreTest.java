@@ -0,0 +1,108 @@
+package cn.migu.flume.helper;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.apache.flume.serialization.PositionTracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/24 10:00
+ * @Version: v1.0
+ */
+public class PositionTrackerStoreTest extends TestCase {
+
+    private File dir;
+    private File logFile;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDir();
+        logFile = new File(dir, ".positions.log");
+    }
+
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testMultipleFiles() throws Exception {
+        PositionTrackerStore store = new PositionTrackerStore(logFile, 0);
+        PositionTracker a = store.getTracker("/data/a.log");
+        PositionTracker b = store.getTracker("/data/b.log");
+        a.storePosition(100);
+        b.storePosition(200);
+        a.storePosition(150);
+        assertEquals("/data/a.log", a.getTarget());
+        assertEquals(150, store.getTracker("/data/a.log").getPosition());
+        store.remove("/data/b.log");
+        store.close();
+
+        // 重启后恢复
+        store = new PositionTrackerStore(logFile, 1000);
+        assertEquals(1, store.size());
+        assertEquals(150, store.getTracker("/data/a.log").getPosition());
+        assertEquals(0, store.getTracker("/data/b.log").getPosition());
+        store.close();
+    }
+
+    public void testTruncatedLog() throws Exception {
+        PositionTrackerStore store = new PositionTrackerStore(logFile, 0);
+        store.getTracker("/data/a.log").storePosition(10);
+        store.getTracker("/data/a.log").storePosition(20);
+        store.close();
+
+        // 模拟写入最后一条记录时崩溃
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        store = new PositionTrackerStore(logFile, 0);
+        assertEquals(10, store.getTracker("/data/a.log").getPosition());
+        store.close();
+    }
+
+    public void testCompact() throws Exception {
+        PositionTrackerStore store = new PositionTrackerStore(logFile, 1000);
+        PositionTracker tracker = store.getTracker("/data/a.log");
+        for (int i = 1; i <= 20000; i++) {
+            tracker.storePosition(i);
+        }
+        // 日志超过阈值后压缩
+        assertTrue(logFile.length() < 64 * 1024 + 100);
+        for (int i = 0; i < 100; i++) {
+            store.getTracker("/data/file-" + i).storePosition(i);
+            store.remove("/data/file-" + i);
+        }
+        store.close();
+
+        store = new PositionTrackerStore(logFile, 1000);
+        assertEquals(1, store.size());
+        assertEquals(20000, store.getTracker("/data/a.log").getPosition());
+        store.close();
+    }
+
+    public void testClosed() throws Exception {
+        PositionTrackerStore store = new PositionTrackerStore(logFile, 0);
+        PositionTracker tracker = store.getTracker("/data/a.log");
+        store.close();
+        try {
+            tracker.storePosition(1);
+            fail();
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package cn.migu.flume.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import junit.framework.TestCase;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/28 10:30
+ * @Version: v1.0
+ */
+public class SharedHeaderEventTest extends TestCase {
+
+    private Map<String, String> base;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        base = ImmutableMap.of("file", "/data/a.log", "basename", "a.log");
+    }
+
+    public void tearDown() throws Exception {
+        // 共享 header 不会被修改
+        assertEquals(ImmutableMap.of("file", "/data/a.log", "basename", "a.log"), base);
+    }
+
+    public void testSharedHeaders() throws Exception {
+        SharedHeaderEvent e1 = new SharedHeaderEvent("1".getBytes(Charsets.UTF_8), base);
+        SharedHeaderEvent e2 = new SharedHeaderEvent("2".getBytes(Charsets.UTF_8), base);
+        assertEquals("a.log", e1.getHeaders().get("basename"));
+        assertEquals(2, e1.getHeaders().size());
+
+        // 新增与覆盖只影响当前 event
+        assertNull(e1.getHeaders().put("hostname", "host1"));
+        assertEquals("host1", e1.getHeaders().put("hostname", "host2"));
+        assertEquals("a.log", e1.getHeaders().put("basename", "b.log"));
+        assertEquals("b.log", e1.getHeaders().get("basename"));
+        assertEquals("host2", e1.getHeaders().get("hostname"));
+        assertEquals(3, e1.getHeaders().size());
+
+        assertEquals("a.log", e2.getHeaders().get("basename"));
+        assertFalse(e2.getHeaders().containsKey("hostname"));
+    }
+
+    public void testRemoveAndIterate() throws Exception {
+        SharedHeaderEvent event = new SharedHeaderEvent(new byte[0], base);
+        event.getHeaders().put("hostname", "host1");
+        assertEquals("/data/a.log", event.getHeaders().remove("file"));
+        assertFalse(event.getHeaders().containsKey("file"));
+
+        Map<String, String> expected = Maps.newHashMap();
+        expected.put("basename", "a.log");
+        expected.put("hostname", "host1");
+        assertEquals(expected, event.getHeaders());
+        assertEquals(expected, Maps.newHashMap(event.getHeaders()));
+
+        event.getHeaders().clear();
+        assertTrue(event.getHeaders().isEmpty());
+    }
+
+    public void testViewWithoutCopy() throws Exception {
+        Map<String, String> shared = Maps.newHashMap(base);
+        SharedHeaderEvent event = new SharedHeaderEvent(new byte[0], shared);
+        event.getHeaders().put("hostname", "host1");
+        event.getHeaders().put("basename", "b.log");
+
+        Map<String, String> expected = Maps.newHashMap();
+        expected.put("file", "/data/a.log");
+        expected.put("basename", "b.log");
+        expected.put("hostname", "host1");
+        assertEquals(expected, event.getHeaders());
+        assertEquals(event.getHeaders(), expected);
+        assertEquals(expected.hashCode(), event.getHeaders().hashCode());
+        assertEquals(expected.entrySet(), event.getHeaders().entrySet());
+        assertEquals(3, event.getHeaders().entrySet().size());
+        assertFalse(event.getHeaders().equals(base));
+
+        // 遍历、hashCode、equals 后仍使用共享 header, 没有复制
+        shared.put("file", "/data/c.log");
+        assertEquals("/data/c.log", event.getHeaders().get("file"));
+
+        // setValue 写入 overlay, 不修改共享 header
+        for (Map.Entry<String, String> entry : event.getHeaders().entrySet()) {
+            if (entry.getKey().equals("file")) {
+                entry.setValue("/data/d.log");
+            }
+        }
+        assertEquals("/data/d.log", event.getHeaders().get("file"));
+        assertEquals("/data/c.log", shared.get("file"));
+
+        // 通过迭代器删除时复制
+        Iterator<String> keys = event.getHeaders().keySet().iterator();
+        while (keys.hasNext()) {
+            if (!keys.next().equals("hostname")) {
+                keys.remove();
+            }
+        }
+        assertEquals(ImmutableMap.of("hostname", "host1"), event.getHeaders());
+        assertEquals(2, shared.size());
+    }
+
+    public void testWrap() throws Exception {
+        Event event = EventBuilder.withBody("x".getBytes(Charsets.UTF_8),
+                ImmutableMap.of("offset", "0"));
+        SharedHeaderEvent shared = SharedHeaderEvent.wrap(event, base);
+        assertSame(event.getBody(), shared.getBody());
+        assertEquals("0", shared.getHeaders().get("offset"));
+        assertEquals("a.log", shared.getHeaders().get("basename"));
+        assertEquals(3, shared.getHeaders().size());
+
+        shared.setHeaders(ImmutableMap.of("k", "v"));
+        assertEquals(ImmutableMap.of("k", "v"), shared.getHeaders());
+    }
+}
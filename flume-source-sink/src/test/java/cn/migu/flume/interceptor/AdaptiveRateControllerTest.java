@@ -0,0 +1,98 @@
+package cn.migu.flume.interceptor;
+
+import junit.framework.TestCase;
+import org.apache.flume.Context;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/12 10:30
+ * @Version: v1.0
+ */
+public class AdaptiveRateControllerTest extends TestCase {
+
+    private static final long KB = 1024L;
+
+    private TokenBucket bucket;
+    private AdaptiveRateController controller;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        Context context = new Context();
+        context.put(AdaptiveRateController.Constants.MIN_RATE, "100");
+        context.put(AdaptiveRateController.Constants.MAX_RATE, "1100");
+        context.put(AdaptiveRateController.Constants.RATE_SCHEDULE, "8-20:500");
+        bucket = new TokenBucket(1000L * KB, 0L);
+        controller = new AdaptiveRateController.Builder().configure(context, 1000L).build(bucket);
+    }
+
+    public void tearDown() throws Exception {
+
+    }
+
+    public void testBackoffHalvesRate() throws Exception {
+        assertEquals(500L * KB, controller.adjust(1L, -1D, 0));
+        assertEquals(250L * KB, controller.adjust(2L, -1D, 0));
+        assertEquals(125L * KB, controller.adjust(1L, -1D, 0));
+        // 不低于 minRate
+        assertEquals(100L * KB, controller.adjust(1L, -1D, 0));
+    }
+
+    public void testChannelFill() throws Exception {
+        assertEquals(500L * KB, controller.adjust(0L, 90D, 0));
+        // 高低水位之间保持不变
+        assertEquals(500L * KB, controller.adjust(0L, 60D, 0));
+        // 低于低水位每次增加 (max - min) / 10
+        assertEquals(600L * KB, controller.adjust(0L, 10D, 0));
+    }
+
+    public void testIncreaseUpToMaxRate() throws Exception {
+        assertEquals(1100L * KB, controller.adjust(0L, -1D, 0));
+        assertEquals(1100L * KB, controller.adjust(0L, -1D, 0));
+        assertEquals(1100L * KB, bucket.getRate());
+    }
+
+    public void testSchedule() throws Exception {
+        // 8-20 点上限为 500KB/s
+        assertEquals(500L * KB, controller.adjust(0L, -1D, 9));
+        assertEquals(500L * KB, controller.adjust(0L, -1D, 19));
+        assertEquals(600L * KB, controller.adjust(0L, -1D, 20));
+    }
+
+    public void testBackoffsPerChannel() throws Exception {
+        Context context = new Context();
+        context.put(AdaptiveRateController.Constants.ADAPTIVE_CHANNEL, "c1");
+        AdaptiveRateController c1 = new AdaptiveRateController.Builder()
+                .configure(context, 1000L).build(new TokenBucket(1000L * KB, 0L));
+
+        // 其他 channel 的退避不影响
+        AdaptiveRateController.reportChannelFull("c2");
+        assertEquals(0L, c1.backoffs());
+        AdaptiveRateController.reportChannelFull("c1");
+        AdaptiveRateController.reportChannelFull("c1");
+        assertEquals(2L, c1.backoffs());
+        assertEquals(0L, c1.backoffs());
+
+        // 未配置 adaptiveChannel 时不响应退避
+        AdaptiveRateController.reportChannelFull("c1");
+        assertEquals(0L, controller.backoffs());
+    }
+
+    public void testParseSchedule() throws Exception {
+        long[] hourly = AdaptiveRateController.parseSchedule("0-8:2048, 20-24:1024", 10L);
+        assertEquals(2048L * KB, hourly[0]);
+        assertEquals(2048L * KB, hourly[7]);
+        assertEquals(10L, hourly[8]);
+        assertEquals(1024L * KB, hourly[23]);
+
+        try {
+            AdaptiveRateController.parseSchedule("8-8:100", 10L);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
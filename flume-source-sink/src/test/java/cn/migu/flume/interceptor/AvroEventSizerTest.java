@@ -0,0 +1,60 @@
+package cn.migu.flume.interceptor;
+
+import com.google.common.collect.Maps;
+import junit.framework.TestCase;
+import org.apache.flume.event.EventBuilder;
+
+import java.util.Map;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/10 14:20
+ * @Version: v1.0
+ */
+public class AvroEventSizerTest extends TestCase {
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+    }
+
+    public void tearDown() throws Exception {
+
+    }
+
+    public void testVarLongSize() throws Exception {
+        assertEquals(1, AvroEventSizer.varLongSize(0L));
+        assertEquals(1, AvroEventSizer.varLongSize(63L));
+        assertEquals(2, AvroEventSizer.varLongSize(64L));
+        assertEquals(2, AvroEventSizer.varLongSize(-65L));
+        assertEquals(3, AvroEventSizer.varLongSize(8192L));
+        assertEquals(10, AvroEventSizer.varLongSize(Long.MIN_VALUE));
+    }
+
+    public void testUtf8Length() throws Exception {
+        assertEquals(3, AvroEventSizer.utf8Length("abc"));
+        assertEquals(6, AvroEventSizer.utf8Length("咪咕"));
+        assertEquals(2, AvroEventSizer.utf8Length("é"));
+        assertEquals(4, AvroEventSizer.utf8Length("😀"));
+    }
+
+    public void testSizeOf() throws Exception {
+        AvroEventSizer sizer = new AvroEventSizer();
+
+        // 无 header: map 结束标记 1 + body 长度 1 + body 3
+        assertEquals(5L, sizer.sizeOf(EventBuilder.withBody(new byte[3])));
+
+        Map<String, String> headers = Maps.newHashMap();
+        headers.put("file", "a.log");
+        // map 条目数 1 + (1 + 4) + (1 + 5) + 结束标记 1 + body (1 + 10)
+        assertEquals(24L, sizer.sizeOf(EventBuilder.withBody(new byte[10], headers)));
+
+        // 缓存的是副本, header 修改后重新计算
+        headers.put("file", "abc.log");
+        assertEquals(26L, sizer.sizeOf(EventBuilder.withBody(new byte[10], headers)));
+    }
+
+}
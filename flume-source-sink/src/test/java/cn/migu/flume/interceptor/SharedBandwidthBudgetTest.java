@@ -0,0 +1,70 @@
+package cn.migu.flume.interceptor;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/13 15:10
+ * @Version: v1.0
+ */
+public class SharedBandwidthBudgetTest extends TestCase {
+
+    private File file;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("budget", ".mmap");
+    }
+
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testSameBudgetInJvm() throws Exception {
+        SharedBandwidthBudget a = SharedBandwidthBudget.get("test-same", 1000L, null);
+        SharedBandwidthBudget.Member member = a.join(1L);
+        assertSame(a, SharedBandwidthBudget.get("test-same", 2000L, null));
+
+        // 最后一个成员离开后预算释放
+        member.close();
+        assertNotSame(a, SharedBandwidthBudget.get("test-same", 2000L, null));
+    }
+
+    public void testWeightedShare() throws Exception {
+        SharedBandwidthBudget budget = new SharedBandwidthBudget("test-weight", 3000L, null);
+        SharedBandwidthBudget.Member small = budget.join(1L);
+        SharedBandwidthBudget.Member large = budget.join(2L);
+
+        small.acquire(1L);
+        large.acquire(1L);
+        budget.rebalance(System.nanoTime());
+        assertEquals(1000L, small.getRate());
+        assertEquals(2000L, large.getRate());
+
+        // 成员离开后份额让给其他成员
+        small.close();
+        assertEquals(3000L, large.getRate());
+        large.close();
+    }
+
+    public void testCoordinationFile() throws Exception {
+        SharedBandwidthBudget first = new SharedBandwidthBudget("test-file", 4000L, file);
+        SharedBandwidthBudget second = new SharedBandwidthBudget("test-file", 4000L, file);
+        SharedBandwidthBudget.Member a = first.join(1L);
+        SharedBandwidthBudget.Member b = second.join(3L);
+
+        a.acquire(1L);
+        b.acquire(1L);
+        first.rebalance(System.nanoTime());
+        assertEquals(1000L, first.getProcessRate());
+        assertEquals(3000L, second.getProcessRate());
+        a.close();
+        b.close();
+    }
+
+}
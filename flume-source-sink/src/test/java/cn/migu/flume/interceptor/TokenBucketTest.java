@@ -0,0 +1,68 @@
+package cn.migu.flume.interceptor;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All rights Reserved, Designed by Migu.cn
+ *
+ * @Description:
+ * @Author: ChenYao
+ * @Date: 2016/10/8 09:40
+ * @Version: v1.0
+ */
+public class TokenBucketTest extends TestCase {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+    }
+
+    public void tearDown() throws Exception {
+
+    }
+
+    public void testSteadyRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000L, 0L);
+        long now = System.nanoTime() + SECOND;
+
+        // 第一次申请立即通过, 之后按速率排队
+        assertEquals(0L, bucket.reserve(500L, now));
+        assertEquals(SECOND / 2, bucket.reserve(500L, now));
+        assertEquals(SECOND, bucket.reserve(500L, now));
+    }
+
+    public void testBurst() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000L, 1000L);
+        long now = System.nanoTime() + 10 * SECOND;
+
+        // 空闲后可以一次性发送 burst 字节
+        assertEquals(0L, bucket.reserve(1000L, now));
+        assertEquals(0L, bucket.reserve(500L, now));
+        assertEquals(SECOND / 2, bucket.reserve(500L, now));
+    }
+
+    public void testSetRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000L, 0L);
+        long now = System.nanoTime() + SECOND;
+        bucket.reserve(1000L, now);
+
+        bucket.setRate(2000L);
+        assertEquals(SECOND, bucket.reserve(1000L, now));
+        assertEquals(SECOND + SECOND / 2, bucket.reserve(1000L, now));
+    }
+
+    public void testAcquire() throws Exception {
+        TokenBucket bucket = new TokenBucket(10L * 1024 * 1024, 0L);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            bucket.acquire(1024L * 1024);
+        }
+        // 5MB 以 10MB/s 发送, 最后一次申请需要等待约 0.4s
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(350));
+    }
+
+}
@@ -1,6 +1,24 @@
 package cn.migu.flume.sink;
 
+import cn.migu.flume.helper.BlockDeserializer;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import junit.framework.TestCase;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.EventDeliveryException;
+import org.apache.flume.Sink;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.AbstractChannel;
+import org.apache.flume.event.EventBuilder;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * All rights Reserved, Designed by Migu.cn
@@ -11,20 +29,228 @@ import junit.framework.TestCase;
  * @Version: v1.0
  */
 public class MGSpoolFileSinkTest extends TestCase {
+
+    private File directory;
+    private File hostDir;
+    private ListChannel channel;
+    private MGSpoolFileSink sink;
+
     public void setUp() throws Exception {
         super.setUp();
-
+        directory = Files.createTempDir();
+        hostDir = new File(directory, "host1");
+        channel = new ListChannel();
     }
 
     public void tearDown() throws Exception {
-
+        if (sink != null) {
+            sink.stop();
+        }
+        File[] files = hostDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        hostDir.delete();
+        directory.delete();
     }
 
     public void testProcess() throws Exception {
+        startSink(false);
+        channel.add("a.log", "a1", null);
+        channel.add("a.log", "a2", null);
+        channel.add("a.log", "", "true");
+        channel.add("b.log", "b1", null);
+        channel.add("b.log", "", "false");
+        channel.add("c.log", "c1", null);
+
+        // 多个文件结束标记在同一事务中处理
+        assertEquals(Sink.Status.BACKOFF, sink.process());
+        assertEquals(1, channel.commits);
+        assertEquals("a1\na2\n", read("a.log"));
+        assertEquals("b1\n", read("b.log.uncompleted"));
+        assertTrue(new File(hostDir, "c.log.tmp").exists());
+    }
+
+    public void testProcessPipelined() throws Exception {
+        startSink(true);
+        channel.add("a.log", "a1", null);
+        channel.add("a.log", "", "true");
+        channel.add("b.log", "b1", null);
+        channel.add("b.log", "", "true");
+
+        sink.process();
+        assertEquals(1, channel.commits);
+        assertEquals("a1\n", read("a.log"));
+        assertEquals("b1\n", read("b.log"));
+    }
+
+    public void testProcessWithDurability() throws Exception {
+        startSink(false, "FDATASYNC");
+        channel.add("a.log", "a1", null);
+        channel.add("a.log", "", "true");
+        channel.add("b.log", "b1", null);
+        channel.add("b.log", "", "true");
+        // 同一批次中完成后重新发送
+        channel.add("a.log", "a2", null);
+        channel.add("a.log", "", "true");
+
+        // 完成的文件与其他文件一起组提交后关闭
+        sink.process();
+        assertEquals(1, channel.commits);
+        assertEquals("a1\n", read("a.log"));
+        assertEquals("b1\n", read("b.log"));
+        assertEquals("a2\n", read("a.log.redo"));
+        assertFalse(new File(hostDir, "a.log.tmp").exists());
+        assertFalse(new File(hostDir, "b.log.tmp").exists());
+    }
+
+    public void testBlockDoneWithCompression() throws Exception {
+        Context context = context(false);
+        context.put("file.compression", "GZIP");
+        context.put("file.maxOpenFiles", "1");
+        startSink(context);
+        channel.addBlock("a.log", 0L, "abc");
+        // 打开 b.log 淘汰 a.log 的 writer
+        channel.add("b.log", "b1", null);
+        channel.add("a.log", "", "true");
+
+        // 结束标记沿用按块写入的未压缩临时文件, 不生成空的压缩文件
+        sink.process();
+        assertEquals(1, channel.commits);
+        assertEquals("abc", read("a.log"));
+        assertFalse(new File(hostDir, "a.log.gz").exists());
+        assertFalse(new File(hostDir, "a.log.tmp").exists());
+        assertTrue(new File(hostDir, "b.log.gz.tmp").exists());
+    }
+
+    public void testRollbackKeepsTempFile() throws Exception {
+        startSink(false);
+        channel.add("a.log", "a1", null);
+        channel.add("a.log", "", "true");
+        channel.failCommit = true;
+
+        try {
+            sink.process();
+            fail();
+        } catch (EventDeliveryException expected) {
+            // expected
+        }
+        assertFalse(new File(hostDir, "a.log").exists());
+        assertTrue(new File(hostDir, "a.log.tmp").exists());
+
+        // 回滚的 event 重新发送后完成重命名, 已写入的数据至少写入一次
+        channel.failCommit = false;
+        sink.process();
+        assertEquals(1, channel.commits);
+        assertTrue(read("a.log").endsWith("a1\n"));
     }
 
     public void testStart() throws Exception {
 
     }
 
-}
\ No newline at end of file
+    private void startSink(boolean pipelined) {
+        startSink(pipelined, "NONE");
+    }
+
+    private void startSink(boolean pipelined, String durability) {
+        Context context = context(pipelined);
+        context.put("file.durability", durability);
+        startSink(context);
+    }
+
+    private Context context(boolean pipelined) {
+        Context context = new Context();
+        context.put("sink.directory", directory.getAbsolutePath());
+        context.put("batchEvent", "100");
+        context.put("file.pipelined", String.valueOf(pipelined));
+        context.put("file.writerShards", pipelined ? "2" : "1");
+        return context;
+    }
+
+    private void startSink(Context context) {
+        sink = new MGSpoolFileSink();
+        sink.setName("test");
+        sink.configure(context);
+        sink.setChannel(channel);
+        sink.start();
+    }
+
+    private String read(String name) throws Exception {
+        return Files.toString(new File(hostDir, name), Charsets.UTF_8);
+    }
+
+    /**
+     * 按顺序返回 event, 记录提交次数, 可以模拟提交失败
+     */
+    private static class ListChannel extends AbstractChannel {
+
+        private final LinkedList<Event> events = Lists.newLinkedList();
+        private final List<Event> taken = Lists.newArrayList();
+        private boolean failCommit;
+        private int commits;
+
+        void add(String fileName, String body, String done) {
+            Map<String, String> headers = Maps.newHashMap();
+            headers.put("hostname", "host1");
+            headers.put("basename", fileName);
+            if (done != null) {
+                headers.put("fileDone", done);
+            }
+            events.add(EventBuilder.withBody(body, Charsets.UTF_8, headers));
+        }
+
+        void addBlock(String fileName, long offset, String body) {
+            Map<String, String> headers = Maps.newHashMap();
+            headers.put("hostname", "host1");
+            headers.put("basename", fileName);
+            headers.put(BlockDeserializer.OFFSET_HEADER, Long.toString(offset));
+            events.add(EventBuilder.withBody(body, Charsets.UTF_8, headers));
+        }
+
+        @Override
+        public void put(Event event) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Event take() {
+            Event event = events.poll();
+            if (event != null) {
+                taken.add(event);
+            }
+            return event;
+        }
+
+        @Override
+        public Transaction getTransaction() {
+            return new Transaction() {
+                @Override
+                public void begin() {
+                    taken.clear();
+                }
+
+                @Override
+                public void commit() {
+                    if (failCommit) {
+                        throw new ChannelException("commit failed");
+                    }
+                    commits++;
+                }
+
+                @Override
+                public void rollback() {
+                    events.addAll(0, taken);
+                    taken.clear();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+}